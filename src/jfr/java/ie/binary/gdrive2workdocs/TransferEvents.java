@@ -0,0 +1,166 @@
+package ie.binary.gdrive2workdocs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events of the phases of a transfer, one event type per {@link Trace.Phase} so that a recording shows
+ * the latency distribution of each. Only loaded when the JVM has Flight Recorder, see {@link Trace}.
+ * <p>
+ * Built from the {@code jfr} source set against Java 11, the rest of the code still targets Java 8.
+ * {@code gdrive2workdocs.jfc} enables the events along with a few low overhead JDK events.
+ */
+final class TransferEvents implements Trace.Recorder {
+
+    @Override
+    public Trace start(Trace.Phase phase, String fileId, String name, long size, String mimeType) {
+        TransferEvent event = newEvent(phase);
+        if (!event.isEnabled()) {
+            return Trace.NONE;
+        }
+
+        event.fileId = fileId;
+        event.name = name;
+        event.size = size;
+        event.mimeType = mimeType;
+        event.outcome = Trace.FAILED;
+        event.begin();
+        return new EventTrace(event);
+    }
+
+    private static TransferEvent newEvent(Trace.Phase phase) {
+        switch (phase) {
+            case LISTING:
+                return new ListingEvent();
+            case QUEUE:
+                return new QueueEvent();
+            case DOWNLOAD:
+                return new DownloadEvent();
+            case EXPORT:
+                return new ExportEvent();
+            case CONTENT_TYPE:
+                return new ContentTypeEvent();
+            case FOLDER:
+                return new FolderEvent();
+            case PUT:
+                return new PutEvent();
+            case UPDATE_VERSION:
+                return new UpdateVersionEvent();
+            default:
+                throw new IllegalArgumentException("Unknown phase: " + phase);
+        }
+    }
+
+    private static class EventTrace extends Trace {
+
+        private final TransferEvent event;
+
+        private EventTrace(TransferEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        public Trace setFileId(String fileId) {
+            event.fileId = fileId;
+            return this;
+        }
+
+        @Override
+        public Trace setSize(long size) {
+            event.size = size;
+            return this;
+        }
+
+        @Override
+        public Trace setMimeType(String mimeType) {
+            event.mimeType = mimeType;
+            return this;
+        }
+
+        @Override
+        public Trace setOutcome(String outcome) {
+            event.outcome = outcome;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            event.commit();
+        }
+    }
+
+    @Category({"gdrive2workdocs", "Transfer"})
+    @StackTrace(false)
+    abstract static class TransferEvent extends Event {
+
+        @Label("File Id")
+        @Description("Drive file or WorkDocs document")
+        String fileId;
+
+        @Label("Name")
+        String name;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Mime Type")
+        String mimeType;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("gdrive2workdocs.Listing")
+    @Label("Listing")
+    @Description("A page of the Drive listing, the size is that of the files listed")
+    static class ListingEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.Queue")
+    @Label("Queue")
+    @Description("Wait for staging space and a download or export slot")
+    static class QueueEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.Download")
+    @Label("Download")
+    @Description("Download of a file from Drive")
+    static class DownloadEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.Export")
+    @Label("Export")
+    @Description("Export of a Google document from Drive to one format")
+    static class ExportEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.ContentType")
+    @Label("Content Type")
+    @Description("Content type lookup by extension, or detection from the content")
+    static class ContentTypeEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.Folder")
+    @Label("Folder")
+    @Description("Resolution of the WorkDocs folder of an upload, creating it if missing")
+    static class FolderEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.Put")
+    @Label("Put")
+    @Description("Upload of the content to the signed WorkDocs URL")
+    static class PutEvent extends TransferEvent {
+    }
+
+    @Name("gdrive2workdocs.UpdateVersion")
+    @Label("Update Version")
+    @Description("Activation of the uploaded document version")
+    static class UpdateVersionEvent extends TransferEvent {
+    }
+}
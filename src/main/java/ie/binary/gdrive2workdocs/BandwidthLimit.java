@@ -0,0 +1,166 @@
+package ie.binary.gdrive2workdocs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token bucket limiting the bytes per second of the streams it {@link #throttle throttles}, with a burst of one
+ * second's worth of bytes.
+ * <p>
+ * The limit can be restricted to some hours of the day, e.g. office hours, and is lifted outside of them. A rate of
+ * 0 means no limit.
+ */
+public class BandwidthLimit {
+
+    private final String name;
+    private volatile long bytesPerSecond;
+    private volatile Hours hours;
+    private double tokens;
+    private long refilled = System.nanoTime();
+
+    public BandwidthLimit(String name, long bytesPerSecond, Hours hours) {
+        this.name = name;
+        configure(bytesPerSecond, hours);
+    }
+
+    /**
+     * Changes the limit, streams being throttled get the new limit straight away.
+     */
+    public void configure(long bytesPerSecond, Hours hours) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.hours = hours;
+    }
+
+    /**
+     * @return the current limit in bytes per second, 0 if there is none right now
+     */
+    public long getBytesPerSecond() {
+        Hours hours = this.hours;
+        if (hours != null && !hours.contains(LocalTime.now())) {
+            return 0;
+        }
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes {@code bytes} out of the bucket, waiting for them if it's empty. The bucket can go into debt, so a
+     * large write waits as long as its size requires and the next ones after it.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long rate = getBytesPerSecond();
+        if (rate <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - refilled) * rate / 1e9);
+            refilled = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / rate) : 0;
+        }
+
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Wraps {@code out} so that writes wait for every one of {@code limits}, nulls are ignored.
+     */
+    public static OutputStream throttle(OutputStream out, BandwidthLimit... limits) {
+        List<BandwidthLimit> active = new ArrayList<>();
+        for (BandwidthLimit limit : limits) {
+            if (limit != null) {
+                active.add(limit);
+            }
+        }
+        return active.isEmpty() ? out : new ThrottledOutputStream(out, active);
+    }
+
+    private static class ThrottledOutputStream extends FilterOutputStream {
+
+        private final List<BandwidthLimit> limits;
+
+        private ThrottledOutputStream(OutputStream out, List<BandwidthLimit> limits) {
+            super(out);
+            this.limits = limits;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            acquire(len);
+            out.write(b, off, len);
+        }
+
+        private void acquire(int bytes) throws InterruptedIOException {
+            try {
+                for (BandwidthLimit limit : limits) {
+                    limit.acquire(bytes);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled by " + limits);
+            }
+        }
+    }
+
+    /**
+     * Hours of the day, like {@code 08:00-18:00}. They may span midnight, like {@code 22:00-06:00}.
+     */
+    public static class Hours {
+
+        private final LocalTime from;
+        private final LocalTime to;
+
+        public Hours(LocalTime from, LocalTime to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * @throws IllegalArgumentException if {@code hours} isn't like {@code 08:00-18:00}
+         */
+        public static Hours parse(String hours) {
+            String[] times = hours.split("-");
+            if (times.length != 2) {
+                throw new IllegalArgumentException("not like 08:00-18:00: " + hours);
+            }
+            try {
+                return new Hours(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("not like 08:00-18:00: " + hours);
+            }
+        }
+
+        public boolean contains(LocalTime time) {
+            if (from.isAfter(to)) {
+                return !time.isBefore(from) || time.isBefore(to);
+            }
+            return !time.isBefore(from) && time.isBefore(to);
+        }
+
+        @Override
+        public String toString() {
+            return from + "-" + to;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package ie.binary.gdrive2workdocs;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.retry.RetryUtils;
+import com.google.api.client.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the operations of one kind in flight, adapting the limit AIMD style: it grows by one after every
+ * {@code limit} operations that went well and is cut by {@code backoffRatio} when the service throttles, fails with
+ * a 5xx or gets slow.
+ * <p>
+ * Slow means the recent latency per MiB transferred is more than {@code latencyTolerance} times the long term
+ * latency. Small operations count as one MiB so that latency is comparable between small and large files. After a
+ * decrease the limit isn't decreased again until {@code limit} more operations finished, so one burst of errors
+ * doesn't collapse it to the minimum.
+ * <p>
+ * With the minimum equal to the maximum the limit is fixed.
+ *
+ * @see TransferPipeline locks rather than monitors
+ */
+public class ConcurrencyLimit {
+
+    private static Logger log = LoggerFactory.getLogger(ConcurrencyLimit.class);
+
+    private static final double MIB = 1024 * 1024;
+    private static final double RECENT_WEIGHT = 0.3;
+    private static final double BASELINE_WEIGHT = 0.02;
+
+    private final String name;
+    private final int min;
+    private final int max;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private double limit;
+    private int inFlight;
+    private double recentLatency;
+    private double baselineLatency;
+    private int sinceDecrease;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    public ConcurrencyLimit(String name, int initial, int min, int max, double backoffRatio, double latencyTolerance) {
+        this.name = name;
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        limit = Math.min(this.max, Math.max(this.min, initial));
+        // A burst of throttling at the initial limit backs off straight away
+        sinceDecrease = (int) limit;
+    }
+
+    /**
+     * A limit that never changes.
+     */
+    public ConcurrencyLimit(String name, int limit) {
+        this(name, limit, limit, limit, 1, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Waits until another operation may start.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                released.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends an operation that transferred {@code bytes} in {@code nanos}.
+     */
+    public void succeeded(long nanos, long bytes) {
+        lock.lock();
+        try {
+            release();
+            if (min == max) {
+                return;
+            }
+
+            double latency = nanos / Math.max(1, bytes / MIB);
+            if (baselineLatency == 0) {
+                baselineLatency = latency;
+                recentLatency = latency;
+            } else {
+                recentLatency += RECENT_WEIGHT * (latency - recentLatency);
+                baselineLatency += BASELINE_WEIGHT * (latency - baselineLatency);
+            }
+
+            if (recentLatency > latencyTolerance * baselineLatency) {
+                decrease("latency " + Math.round(recentLatency / 1e6) + "ms/MiB, usually " + Math.round(baselineLatency / 1e6));
+            } else {
+                sinceDecrease++;
+                limit = Math.min(max, limit + 1 / limit);
+                released.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends an operation that failed, backing off if it failed because the service is overloaded.
+     */
+    public void failed(Throwable t) {
+        lock.lock();
+        try {
+            release();
+            if (min != max && isOverloaded(t)) {
+                decrease(t.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ends an operation that says nothing about the load of the service, like a skipped one.
+     */
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(String reason) {
+        if (sinceDecrease < limit) {
+            sinceDecrease++;
+            return;
+        }
+
+        int previous = (int) limit;
+        limit = Math.max(min, limit * backoffRatio);
+        sinceDecrease = 0;
+        // The latency that triggered this shouldn't trigger the next decrease too
+        recentLatency = baselineLatency;
+        if ((int) limit != previous) {
+            log.info("{} concurrency {} -> {}: {}", name, previous, (int) limit, reason);
+        }
+    }
+
+    /**
+     * @return true for throttling and server errors from Drive, WorkDocs and the signed URL uploads
+     */
+    static boolean isOverloaded(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof HttpResponseException) {
+                HttpResponseException e = (HttpResponseException) t;
+                String content = e.getContent();
+                if (isOverloaded(e.getStatusCode())
+                        || e.getStatusCode() == 403 && content != null && content.toLowerCase().contains("ratelimitexceeded")) {
+                    return true;
+                }
+            } else if (t instanceof AmazonServiceException) {
+                AmazonServiceException e = (AmazonServiceException) t;
+                if (RetryUtils.isThrottlingException((SdkBaseException) e) || isOverloaded(e.getStatusCode())) {
+                    return true;
+                }
+            } else if (t instanceof UploadClient.UploadException) {
+                if (isOverloaded(((UploadClient.UploadException) t).getStatusCode())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOverloaded(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+}
@@ -0,0 +1,558 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableBiMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.System.getProperty;
+import static java.lang.System.getenv;
+import static org.apache.commons.io.FileUtils.readFileToString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * The settings file, parsed and validated once into typed settings.
+ * <p>
+ * A {@code Config} never changes. {@link #get()} loads the settings file on first use, {@link #reloadIfChanged()}
+ * loads a new one from the same file when it changed and {@link #set(Config)} lets an embedding application supply
+ * its own. Helpers are given the config they work with and keep it for their lifetime.
+ */
+public final class Config {
+
+    private static Logger log = LoggerFactory.getLogger(Config.class);
+
+    private static volatile Config current;
+
+    private final File file;
+    private final long lastModified;
+
+    /**
+     * Modification time of the settings file when it last failed to reload, so it isn't retried until it changes
+     * again.
+     */
+    private long failedLastModified;
+    private final BiMap<String, String> mimeTypeExtensions;
+    private final Map<String, Object> settings;
+    private final Map<String, WorkDocsConfig> workdocs;
+    private final Map<String, GDriveConfig> gdrives;
+    private final File dataStoreDir;
+    private final int daemonThreads;
+    private final long settingsCheckInterval;
+    private final long drainTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean gzip;
+    private final int maxConnections;
+    private final int uploadBufferSize;
+    private final long downloadBytesPerSecond;
+    private final long uploadBytesPerSecond;
+    private final BandwidthLimit.Hours bandwidthHours;
+
+    /**
+     * @return the current config, loading the settings file if none was loaded yet
+     * @throws UncheckedIOException if the settings file can't be read
+     * @throws IllegalArgumentException if the settings are invalid
+     */
+    public static Config get() {
+        Config config = current;
+        if (config == null) {
+            synchronized (Config.class) {
+                config = current;
+                if (config == null) {
+                    try {
+                        config = load(getSettingsFile());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    current = config;
+                }
+            }
+        }
+        return config;
+    }
+
+    public static synchronized void set(Config config) {
+        current = config;
+    }
+
+    /**
+     * Reloads the settings file of this config if it changed since it was loaded. Helpers only see the new config
+     * once they are recreated. If this is the current config, the new one becomes current.
+     *
+     * @return the new config, or this one if the file didn't change or can't be loaded
+     */
+    public synchronized Config reloadIfChanged() {
+        if (file == null) {
+            return this;
+        }
+
+        long modified = file.lastModified();
+        if (modified == lastModified || modified == failedLastModified) {
+            return this;
+        }
+
+        Config config;
+        try {
+            config = load(file);
+        } catch (IOException | RuntimeException e) {
+            log.error("Keeping previous settings, could not reload " + file + ": " + e.getMessage(), e);
+            failedLastModified = modified;
+            return this;
+        }
+
+        synchronized (Config.class) {
+            if (current == this) {
+                current = config;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * The settings file named by the {@code SETTINGS_FILE} system property or the {@code settings_file}
+     * environment variable, {@code settings.yaml} otherwise.
+     */
+    public static File getSettingsFile() {
+        String yamlPath = "settings.yaml";
+        if (isNotBlank(getenv("settings_file"))) {
+            yamlPath = getenv("settings_file");
+        }
+
+        if (isNotBlank(getProperty("SETTINGS_FILE"))) {
+            yamlPath = getProperty("SETTINGS_FILE");
+        }
+
+        return new File(yamlPath);
+    }
+
+    public static Config load(File yamlFile) throws IOException {
+        if (!yamlFile.exists()) {
+            throw new FileNotFoundException("File not found: " + yamlFile.getAbsolutePath());
+        }
+
+        long lastModified = yamlFile.lastModified();
+        Map<String, Object> yaml = new Yaml().load(readFileToString(yamlFile, Charset.defaultCharset()));
+        Config config = new Config(yamlFile, lastModified, yaml == null ? Collections.emptyMap() : yaml);
+
+        log.info("Loaded setup file: " + yamlFile.getAbsolutePath());
+        return config;
+    }
+
+    @SuppressWarnings("unchecked")
+    Config(File file, long lastModified, Map<String, Object> yaml) {
+        this.file = file;
+        this.lastModified = lastModified;
+
+        // https://developers.google.com/drive/v3/web/manage-downloads
+        BiMap<String, String> mimeTypeExtensions = HashBiMap.create();
+
+        // MS Office
+        mimeTypeExtensions.put("application/vnd.openxmlformats-officedocument.wordprocessingml.document", "docx");
+        mimeTypeExtensions.put("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet", "xlsx");
+        mimeTypeExtensions.put("application/vnd.openxmlformats-officedocument.presentationml.presentation", "pptx");
+
+        // Open Office
+        mimeTypeExtensions.put("application/vnd.oasis.opendocument.text", "odt");
+        mimeTypeExtensions.put("application/x-vnd.oasis.opendocument.spreadsheet", "ods");
+        mimeTypeExtensions.put("application/vnd.oasis.opendocument.presentation", "odp");
+
+        // Other
+        mimeTypeExtensions.put("application/pdf", "pdf");
+        mimeTypeExtensions.put("image/png", "png");
+        mimeTypeExtensions.put("image/svg+xml", "svg");
+
+        Map<String, Object> mimeTypes = (Map<String, Object>) yaml.get("mimeTypes");
+        if (mimeTypes != null) {
+            for (Map.Entry<String, Object> mimeType : mimeTypes.entrySet()) {
+                mimeTypeExtensions.forcePut(String.valueOf(mimeType.getValue()), mimeType.getKey());
+            }
+        }
+        this.mimeTypeExtensions = ImmutableBiMap.copyOf(mimeTypeExtensions);
+
+        Map<String, WorkDocsConfig> workdocs = new LinkedHashMap<>();
+        for (Map<String, Object> doc : getSections(yaml, "workdocs")) {
+            WorkDocsConfig config = new WorkDocsConfig(doc);
+            if (workdocs.put(config.getName(), config) != null) {
+                throw new IllegalArgumentException("Duplicate workdocs: " + config.getName());
+            }
+        }
+        this.workdocs = Collections.unmodifiableMap(workdocs);
+
+        Map<String, GDriveConfig> gdrives = new LinkedHashMap<>();
+        for (Map<String, Object> drive : getSections(yaml, "gdrives")) {
+            GDriveConfig config = new GDriveConfig(drive);
+            if (gdrives.put(config.getName(), config) != null) {
+                throw new IllegalArgumentException("Duplicate gdrive: " + config.getName());
+            }
+            if (!config.isDownloadOnly() && config.getDestination() != null && !workdocs.containsKey(config.getDestination())) {
+                throw new IllegalArgumentException("gdrive [" + config.getName() + "] destination: no workdocs named "
+                        + config.getDestination());
+            }
+        }
+        this.gdrives = Collections.unmodifiableMap(gdrives);
+
+        Map<String, Object> settings = (Map<String, Object>) yaml.get("settings");
+        this.settings = settings == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(settings));
+        Section section = new Section("settings", this.settings);
+
+        String dataStoreDir = section.getString("dataStoreDir", new File("").getAbsolutePath());
+        if (dataStoreDir.startsWith("~/")) {
+            dataStoreDir = System.getProperty("user.home") + File.separator + dataStoreDir.substring(2);
+        }
+        this.dataStoreDir = new File(dataStoreDir);
+
+        daemonThreads = section.getInt("daemonThreads", 0);
+        settingsCheckInterval = section.getPositiveLong("settingsCheckInterval", 30);
+        drainTimeout = section.getLong("drainTimeout", 600);
+        connectTimeout = section.getInt("connectTimeout", 20000);
+        readTimeout = section.getInt("readTimeout", 60000);
+        gzip = section.getBoolean("gzip", true);
+        maxConnections = section.getInt("maxConnections", 0);
+        uploadBufferSize = section.getPositiveInt("uploadBufferSize", 262144);
+        downloadBytesPerSecond = section.getLong("downloadBytesPerSecond", 0);
+        uploadBytesPerSecond = section.getLong("uploadBytesPerSecond", 0);
+        bandwidthHours = section.getHours("bandwidthHours");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> getSections(Map<String, Object> yaml, String key) {
+        Object sections = yaml.get(key);
+        if (sections == null) {
+            return Collections.emptyList();
+        }
+        if (!(sections instanceof Collection)) {
+            throw new IllegalArgumentException(key + ": not a list");
+        }
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Object section : (Collection<Object>) sections) {
+            if (!(section instanceof Map)) {
+                throw new IllegalArgumentException(key + ": not a list of settings");
+            }
+            if (((Map<String, Object>) section).get("name") != null) {
+                result.add((Map<String, Object>) section);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Whether {@code other} has the same global settings, so that helpers created with it behave as if created with
+     * this config.
+     */
+    public boolean isSameSettings(Config other) {
+        return settings.equals(other.settings) && isSameMimeTypes(other);
+    }
+
+    /**
+     * Whether Google documents are exported to the same formats, under the same names, as with {@code other}.
+     */
+    public boolean isSameMimeTypes(Config other) {
+        return mimeTypeExtensions.equals(other.mimeTypeExtensions);
+    }
+
+    public Collection<String> getGdriveNames() {
+        return gdrives.keySet();
+    }
+
+    public Collection<GDriveConfig> getGdrives() {
+        return gdrives.values();
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such gdrive
+     */
+    public GDriveConfig getGdrive(String name) {
+        GDriveConfig config = gdrives.get(name);
+        if (config == null) {
+            throw new IllegalArgumentException("GDrive settings don't exist for: " + name);
+        }
+        return config;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such workdocs
+     */
+    public WorkDocsConfig getWorkdocs(String name) {
+        WorkDocsConfig config = workdocs.get(name);
+        if (config == null) {
+            throw new IllegalArgumentException("Workdoc settings don't exist for: " + name);
+        }
+        return config;
+    }
+
+    public String getExtensionSuffix(String contentType) {
+        return mimeTypeExtensions.get(contentType);
+    }
+
+    public String getContentTypeByExtension(String ext) {
+        return mimeTypeExtensions.inverse().get(ext);
+    }
+
+    /**
+     * Directory to store user credentials and downloaded files in.
+     */
+    public File getDataStoreDir() {
+        return dataStoreDir;
+    }
+
+    /**
+     * @return threads of the daemon scheduler, 0 for one per gdrive
+     */
+    public int getDaemonThreads() {
+        return daemonThreads;
+    }
+
+    public long getSettingsCheckInterval() {
+        return settingsCheckInterval;
+    }
+
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * @return connections kept alive per host, 0 to size it to the workers
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return bytes read from a staged file and written to an upload at a time
+     */
+    public int getUploadBufferSize() {
+        return uploadBufferSize;
+    }
+
+    /**
+     * @return bytes per second all gdrives together may download, 0 for no limit
+     */
+    public long getDownloadBytesPerSecond() {
+        return downloadBytesPerSecond;
+    }
+
+    /**
+     * @return bytes per second all gdrives together may upload, 0 for no limit
+     */
+    public long getUploadBytesPerSecond() {
+        return uploadBytesPerSecond;
+    }
+
+    /**
+     * @return hours of the day the bandwidth limits apply, null for all day
+     */
+    public BandwidthLimit.Hours getBandwidthHours() {
+        return bandwidthHours;
+    }
+
+    /**
+     * Typed access to one section of the settings file, failing with the section and key on invalid values.
+     */
+    static class Section {
+
+        private final String name;
+        private final Map<String, Object> values;
+
+        Section(String name, Map<String, Object> values) {
+            this.name = name;
+            this.values = values;
+        }
+
+        String getString(String key, String defaultValue) {
+            Object value = values.get(key);
+            return value == null ? defaultValue : value.toString();
+        }
+
+        String getRequiredString(String key) {
+            String value = getString(key, null);
+            if (isBlank(value)) {
+                throw invalid(key, "empty");
+            }
+            return value;
+        }
+
+        int getInt(String key, int defaultValue) {
+            long value = getLong(key, defaultValue);
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw invalid(key, "out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        int getPositiveInt(String key, int defaultValue) {
+            int value = getInt(key, defaultValue);
+            if (value <= 0) {
+                throw invalid(key, "must be positive: " + value);
+            }
+            return value;
+        }
+
+        long getLong(String key, long defaultValue) {
+            Object value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            if (value instanceof Integer || value instanceof Long) {
+                return ((Number) value).longValue();
+            }
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw invalid(key, "not a number: " + value);
+            }
+        }
+
+        long getPositiveLong(String key, long defaultValue) {
+            long value = getLong(key, defaultValue);
+            if (value <= 0) {
+                throw invalid(key, "must be positive: " + value);
+            }
+            return value;
+        }
+
+        double getDouble(String key, double defaultValue) {
+            Object value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            try {
+                return Double.parseDouble(value.toString().trim());
+            } catch (NumberFormatException e) {
+                throw invalid(key, "not a number: " + value);
+            }
+        }
+
+        boolean getBoolean(String key, boolean defaultValue) {
+            Object value = values.get(key);
+            if (value == null) {
+                return defaultValue;
+            }
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            switch (value.toString().trim().toLowerCase()) {
+                case "true":
+                case "yes":
+                case "on":
+                    return true;
+                case "false":
+                case "no":
+                case "off":
+                    return false;
+                default:
+                    throw invalid(key, "not a boolean: " + value);
+            }
+        }
+
+        /**
+         * @return null if not set
+         */
+        Boolean getOptionalBoolean(String key) {
+            return values.get(key) == null ? null : getBoolean(key, false);
+        }
+
+        /**
+         * A date like {@code 2020-01-31}, taken as midnight UTC, or a date and time like
+         * {@code 2020-01-31T12:00:00Z}.
+         *
+         * @return null if not set
+         */
+        Date getDate(String key) {
+            Object value = values.get(key);
+            if (value == null) {
+                return null;
+            }
+            // Unquoted dates are parsed by the YAML parser already
+            if (value instanceof Date) {
+                return (Date) value;
+            }
+            String date = value.toString().trim();
+            try {
+                return Date.from(OffsetDateTime.parse(date).toInstant());
+            } catch (DateTimeParseException e) {
+                try {
+                    return Date.from(LocalDate.parse(date).atStartOfDay(ZoneOffset.UTC).toInstant());
+                } catch (DateTimeParseException e2) {
+                    throw invalid(key, "not like 2020-01-31 or 2020-01-31T12:00:00Z: " + value);
+                }
+            }
+        }
+
+        /**
+         * @return null if not set
+         */
+        BandwidthLimit.Hours getHours(String key) {
+            String value = getString(key, null);
+            if (isBlank(value)) {
+                return null;
+            }
+            try {
+                return BandwidthLimit.Hours.parse(value);
+            } catch (IllegalArgumentException e) {
+                throw invalid(key, e.getMessage());
+            }
+        }
+
+        /**
+         * A list, or a single value as a list of one.
+         */
+        List<String> getList(String key) {
+            Object value = values.get(key);
+            if (value == null) {
+                return Collections.emptyList();
+            }
+
+            List<String> list = new ArrayList<>();
+            if (value instanceof Collection) {
+                for (Object item : (Collection<?>) value) {
+                    if (item != null) {
+                        list.add(item.toString());
+                    }
+                }
+            } else {
+                list.add(value.toString());
+            }
+            return Collections.unmodifiableList(list);
+        }
+
+        IllegalArgumentException invalid(String key, String message) {
+            return new IllegalArgumentException(name + " " + key + ": " + message);
+        }
+    }
+}
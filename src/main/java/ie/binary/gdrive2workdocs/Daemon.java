@@ -0,0 +1,229 @@
+package ie.binary.gdrive2workdocs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Long running process that keeps one warm {@link GDriveHelper} per configured gdrive and polls each of them for
+ * changes on its own interval.
+ * <p>
+ * The settings file is checked for changes and the gdrives whose settings changed are recreated without a restart.
+ * On shutdown no new transfers are started and the ones in flight are drained.
+ * <p>
+ * Only the full run of a gdrive can be split between workers, every worker would transfer every change, so gdrives
+ * with a {@code coordinationDir} can't be polled.
+ */
+public class Daemon {
+
+    private static Logger log = LoggerFactory.getLogger(Daemon.class);
+
+    private final ScheduledExecutorService scheduler;
+    private volatile Config config;
+    private final Map<String, Poll> polls = new ConcurrentHashMap<>();
+
+    public Daemon(Config config) {
+        for (GDriveConfig settings : config.getGdrives()) {
+            if (isSharded(settings)) {
+                throw new IllegalArgumentException(shardedError(settings));
+            }
+        }
+        this.config = config;
+        Transports.configureBandwidth(config);
+        int threads = config.getDaemonThreads();
+        if (threads <= 0) {
+            threads = config.getGdriveNames().size() + 1;
+        }
+        scheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    public void start() {
+        for (String name : config.getGdriveNames()) {
+            schedule(name, null);
+        }
+
+        long settingsCheckInterval = config.getSettingsCheckInterval();
+        scheduler.scheduleWithFixedDelay(this::reloadSettings, settingsCheckInterval, settingsCheckInterval, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop, "gdrive2workdocs-shutdown"));
+        log.info("Daemon started for {} gdrives", polls.size());
+    }
+
+    /**
+     * Stops polling and waits for the transfers in flight to finish.
+     */
+    public void stop() {
+        log.info("Stopping, draining transfers in flight ...");
+        for (Poll poll : polls.values()) {
+            poll.helper.stop();
+        }
+        scheduler.shutdown();
+
+        long drainTimeout = config.getDrainTimeout();
+        try {
+            if (!scheduler.awaitTermination(drainTimeout, TimeUnit.SECONDS)) {
+                log.warn("Transfers still in flight after {}s, giving up", drainTimeout);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Stopped");
+    }
+
+    /**
+     * @param previous helper whose polling the new one resumes, null to start with a full run
+     */
+    private void schedule(String name, GDriveHelper previous) {
+        if (isSharded(config.getGdrive(name))) {
+            log.error(shardedError(config.getGdrive(name)) + ", not polling it");
+            return;
+        }
+
+        GDriveHelper helper = new GDriveHelper(config, name);
+        if (previous != null) {
+            helper.resumeFrom(previous);
+        }
+        long pollInterval = helper.getSettings().getPollInterval();
+
+        Poll poll = new Poll(helper);
+        polls.put(name, poll);
+        poll.future = scheduler.scheduleWithFixedDelay(() -> poll(name, poll), 0, pollInterval, TimeUnit.SECONDS);
+        log.info("Polling [{}] every {}s", name, pollInterval);
+    }
+
+    private static boolean isSharded(GDriveConfig settings) {
+        return isNotBlank(settings.getCoordinationDir());
+    }
+
+    private static String shardedError(GDriveConfig settings) {
+        return "gdrive [" + settings.getName() + "] coordinationDir: sharded gdrives can only be migrated with run, not polled by the daemon";
+    }
+
+    /**
+     * Stops polling a gdrive and waits for a poll in progress to drain, so that nothing else works on the drive.
+     */
+    private Poll unschedule(String name) {
+        Poll poll = polls.remove(name);
+        if (poll == null) {
+            return null;
+        }
+
+        poll.cancelled = true;
+        poll.future.cancel(false);
+        poll.helper.stop();
+        if (poll.running.isLocked()) {
+            log.info("Waiting for the poll of [{}] to drain ...", name);
+        }
+        poll.running.lock();
+        poll.running.unlock();
+        return poll;
+    }
+
+    private void poll(String name, Poll poll) {
+        poll.running.lock();
+        try {
+            if (!poll.cancelled) {
+                poll.helper.poll();
+            }
+        } catch (Throwable t) {
+            // Anything thrown here would cancel the schedule
+            log.error("Polling [" + name + "] failed: " + t.getMessage(), t);
+        } finally {
+            poll.running.unlock();
+        }
+    }
+
+    private void reloadSettings() {
+        try {
+            Config previous = config;
+            Config reloaded = previous.reloadIfChanged();
+            if (reloaded == previous) {
+                return;
+            }
+            config = reloaded;
+            Transports.configureBandwidth(reloaded);
+
+            // Helpers keep the config they were created with
+            boolean globalChanged = !reloaded.isSameSettings(previous);
+            if (globalChanged) {
+                log.info("Global settings changed, recreating every gdrive");
+            }
+
+            for (String name : polls.keySet()) {
+                if (!config.getGdriveNames().contains(name)) {
+                    log.info("Removed gdrive [{}]", name);
+                    unschedule(name);
+                }
+            }
+
+            for (String name : config.getGdriveNames()) {
+                Poll poll = polls.get(name);
+                if (poll == null) {
+                    log.info("Added gdrive [{}]", name);
+                    schedule(name, null);
+                } else if (globalChanged || settingsChanged(poll.helper)) {
+                    boolean resume = isSameTransfer(poll.helper);
+                    log.info("Settings changed for gdrive [{}], recreating it{}", name,
+                            resume ? " and resuming from its last poll" : " with a full run");
+                    unschedule(name);
+                    schedule(name, resume ? poll.helper : null);
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Reloading settings failed: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean settingsChanged(GDriveHelper helper) {
+        GDriveConfig previous = helper.getSettings();
+        GDriveConfig current = config.getGdrive(previous.getName());
+        if (!previous.equals(current)) {
+            return true;
+        }
+
+        // The destination is created from the settings loaded at the time
+        WorkDocsConfig destinationSettings = helper.getDestinationSettings();
+        return destinationSettings != null
+                && !destinationSettings.equals(config.getWorkdocs(current.getDestination()));
+    }
+
+    /**
+     * Whether the changed settings still transfer the same files to the same place, so that polling can go on from
+     * the last changes token rather than start over.
+     */
+    private boolean isSameTransfer(GDriveHelper helper) {
+        GDriveConfig previous = helper.getSettings();
+        GDriveConfig current = config.getGdrive(previous.getName());
+        if (!previous.isSameTransfer(current) || !config.isSameMimeTypes(helper.getConfig())) {
+            return false;
+        }
+
+        WorkDocsConfig destinationSettings = helper.getDestinationSettings();
+        return destinationSettings == null || current.getDestination() != null
+                && destinationSettings.equals(config.getWorkdocs(current.getDestination()));
+    }
+
+    /**
+     * The schedule of a gdrive, whose polls run one at a time.
+     */
+    private static class Poll {
+
+        private final GDriveHelper helper;
+        private final ReentrantLock running = new ReentrantLock();
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled;
+
+        private Poll(GDriveHelper helper) {
+            this.helper = helper;
+        }
+    }
+}
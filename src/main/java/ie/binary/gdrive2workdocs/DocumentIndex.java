@@ -0,0 +1,100 @@
+package ie.binary.gdrive2workdocs;
+
+import com.amazonaws.services.workdocs.model.DocumentMetadata;
+import com.amazonaws.services.workdocs.model.DocumentVersionMetadata;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact index of the documents that already exist in the WorkDocs folders, keyed by folder id and document name.
+ * <p>
+ * Only what is needed to decide between skipping, adding a new version or creating a new document is kept. Safe to
+ * share between upload workers.
+ */
+public class DocumentIndex {
+
+    private final Map<String, Map<String, Entry>> folders = new HashMap<>();
+
+    private int size;
+
+    public synchronized void addAll(String folderId, Collection<DocumentMetadata> documents) {
+        if (documents == null) {
+            return;
+        }
+
+        for (DocumentMetadata document : documents) {
+            DocumentVersionMetadata version = document.getLatestVersionMetadata();
+            if (version == null || version.getName() == null) {
+                continue;
+            }
+
+            Date modified = version.getContentModifiedTimestamp();
+            if (modified == null) {
+                modified = version.getModifiedTimestamp();
+            }
+
+            Long size = version.getSize();
+            put(folderId, version.getName(), new Entry(document.getId(), version.getId(),
+                    size == null ? -1 : size, modified == null ? 0 : modified.getTime()));
+        }
+    }
+
+    public synchronized Entry get(String folderId, String name) {
+        Map<String, Entry> documents = folders.get(folderId);
+        return documents == null ? null : documents.get(name);
+    }
+
+    public synchronized void put(String folderId, String name, Entry entry) {
+        if (folders.computeIfAbsent(folderId, k -> new HashMap<>()).put(name, entry) == null) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public static class Entry {
+        private final String documentId;
+        private final String versionId;
+        private final long size;
+        private final long modified;
+
+        public Entry(String documentId, String versionId, long size, long modified) {
+            this.documentId = documentId;
+            this.versionId = versionId;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getDocumentId() {
+            return documentId;
+        }
+
+        public String getVersionId() {
+            return versionId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Same size and same modified time to the second, as not every file system keeps milliseconds.
+         */
+        public boolean matches(long size, Date modified) {
+            return size >= 0 && this.size == size && matchesModified(modified);
+        }
+
+        public boolean matchesModified(Date modified) {
+            return modified != null && this.modified / 1000 == modified.getTime() / 1000;
+        }
+    }
+}
@@ -0,0 +1,443 @@
+package ie.binary.gdrive2workdocs;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Settings of one gdrive, see the {@code gdrives} section of the settings file.
+ * <p>
+ * Two configs are equal when they were read from the same settings, which is how the daemon tells whether a gdrive
+ * has to be recreated after a reload.
+ */
+public final class GDriveConfig {
+
+    /**
+     * Settings that only change how fast files are transferred, not which files go where.
+     */
+    private static final Set<String> TUNING = new HashSet<>(Arrays.asList(
+            "fileFetchSize", "folderHierarchyFetchSize", "exportSizeEstimate", "engine", "downloadWorkers",
+            "uploadWorkers", "maxInFlight", "adaptiveConcurrency", "minConcurrency", "maxConcurrency", "backoffRatio",
+            "latencyTolerance", "downloadBytesPerSecond", "uploadBytesPerSecond", "bandwidthHours", "stagingBytes",
+            "stagingEviction", "pollInterval", "verifyWorkers", "verifySampleRate", "leaseSeconds", "workerId",
+            "sharedDriveParallelism", "folderWorkers", "precreateFolders", "deduplicate"));
+
+    private final Map<String, Object> values;
+    private final String name;
+    private final String clientId;
+    private final String clientSecret;
+    private final String applicationName;
+    private final String localServerReceiverHost;
+    private final int localServerReceiverPort;
+    private final String localServerReceiverCallbackPath;
+    private final int fileFetchSize;
+    private final int folderHierarchyFetchSize;
+    private final String rootDirName;
+    private final String targetDirName;
+    private final String destination;
+    private final boolean downloadOnly;
+    private final boolean cleanup;
+    private final List<String> dontDeleteDir;
+    private final long exportSizeEstimate;
+    private final String engine;
+    private final int downloadWorkers;
+    private final int uploadWorkers;
+    private final int maxInFlight;
+    private final boolean adaptiveConcurrency;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final long downloadBytesPerSecond;
+    private final long uploadBytesPerSecond;
+    private final BandwidthLimit.Hours bandwidthHours;
+    private final long stagingBytes;
+    private final boolean stagingEviction;
+    private final long pollInterval;
+    private final int verifyWorkers;
+    private final double verifySampleRate;
+    private final String coordinationDir;
+    private final int shards;
+    private final int shardsPerClaim;
+    private final long leaseSeconds;
+    private final String workerId;
+    private final boolean sharedDrives;
+    private final boolean myDrive;
+    private final String sharedDrivesDirName;
+    private final List<String> sharedDriveNames;
+    private final int sharedDriveParallelism;
+    private final boolean precreateFolders;
+    private final int folderWorkers;
+    private final SyncFilter filter;
+    private final boolean deduplicate;
+
+    GDriveConfig(Map<String, Object> values) {
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+
+        Config.Section section = new Config.Section("gdrive", values);
+        name = section.getRequiredString("name");
+        section = new Config.Section("gdrive [" + name + "]", values);
+
+        clientId = section.getRequiredString("clientId");
+        clientSecret = section.getRequiredString("clientSecret");
+        applicationName = section.getString("applicationName", "gdrive2workdocs");
+        localServerReceiverHost = section.getString("localServerReceiverHost", "localhost");
+        localServerReceiverPort = section.getPositiveInt("localServerReceiverPort", 5432);
+        localServerReceiverCallbackPath = section.getString("localServerReceiverCallbackPath", "/Callback");
+        fileFetchSize = section.getPositiveInt("fileFetchSize", 1000);
+        folderHierarchyFetchSize = section.getPositiveInt("folderHierarchyFetchSize", 1000);
+        rootDirName = section.getString("rootDirName", "");
+        targetDirName = section.getString("targetDirName", "GDrive");
+        destination = section.getString("destination", null);
+        downloadOnly = section.getBoolean("downloadOnly", false);
+        cleanup = section.getBoolean("cleanup", false);
+        dontDeleteDir = section.getList("dontDeleteDir");
+        exportSizeEstimate = section.getPositiveLong("exportSizeEstimate", 10485760);
+
+        engine = section.getString("engine", "threads");
+        if (!"threads".equals(engine) && !"virtual".equals(engine)) {
+            throw section.invalid("engine", "threads or virtual: " + engine);
+        }
+        downloadWorkers = section.getPositiveInt("downloadWorkers", 1);
+        uploadWorkers = section.getPositiveInt("uploadWorkers", 1);
+        maxInFlight = section.getPositiveInt("maxInFlight", 256);
+        adaptiveConcurrency = section.getBoolean("adaptiveConcurrency", false);
+        minConcurrency = section.getPositiveInt("minConcurrency", 1);
+        maxConcurrency = section.getInt("maxConcurrency", 0);
+        backoffRatio = section.getDouble("backoffRatio", 0.5);
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw section.invalid("backoffRatio", "must be between 0 and 1: " + backoffRatio);
+        }
+        latencyTolerance = section.getDouble("latencyTolerance", 2);
+        if (latencyTolerance <= 1) {
+            throw section.invalid("latencyTolerance", "must be more than 1: " + latencyTolerance);
+        }
+        downloadBytesPerSecond = section.getLong("downloadBytesPerSecond", 0);
+        uploadBytesPerSecond = section.getLong("uploadBytesPerSecond", 0);
+        bandwidthHours = section.getHours("bandwidthHours");
+        stagingBytes = section.getLong("stagingBytes", 0);
+        stagingEviction = section.getBoolean("stagingEviction", false);
+
+        pollInterval = section.getPositiveLong("pollInterval", 300);
+        verifyWorkers = section.getPositiveInt("verifyWorkers", 8);
+        verifySampleRate = section.getDouble("verifySampleRate", 0);
+
+        coordinationDir = section.getString("coordinationDir", null);
+        shards = section.getPositiveInt("shards", 64);
+        shardsPerClaim = section.getPositiveInt("shardsPerClaim", 4);
+        leaseSeconds = Math.max(10, section.getLong("leaseSeconds", 300));
+        workerId = section.getString("workerId", ManagementFactory.getRuntimeMXBean().getName());
+
+        sharedDrives = section.getBoolean("sharedDrives", false);
+        myDrive = section.getBoolean("myDrive", true);
+        sharedDrivesDirName = section.getString("sharedDrivesDirName", "Shared drives");
+        sharedDriveNames = section.getList("sharedDriveNames");
+        sharedDriveParallelism = section.getPositiveInt("sharedDriveParallelism", 4);
+
+        precreateFolders = section.getBoolean("precreateFolders", true);
+        folderWorkers = section.getPositiveInt("folderWorkers", 8);
+
+        filter = new SyncFilter(section);
+        deduplicate = section.getBoolean("deduplicate", true);
+    }
+
+    /**
+     * Settings of one of this gdrive's shared drives, which gets its own name and its own sub folder of the target
+     * directory.
+     */
+    GDriveConfig forSharedDrive(String driveName) {
+        driveName = driveName.replace("/", "-");
+
+        Map<String, Object> sharedDriveValues = new LinkedHashMap<>(values);
+        sharedDriveValues.put("name", name + "-" + driveName);
+        sharedDriveValues.put("targetDirName", targetDirName + "/" + sharedDrivesDirName + "/" + driveName);
+        sharedDriveValues.remove("sharedDrives");
+        return new GDriveConfig(sharedDriveValues);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getClientSecret() {
+        return clientSecret;
+    }
+
+    public String getApplicationName() {
+        return applicationName;
+    }
+
+    public String getLocalServerReceiverHost() {
+        return localServerReceiverHost;
+    }
+
+    public int getLocalServerReceiverPort() {
+        return localServerReceiverPort;
+    }
+
+    public String getLocalServerReceiverCallbackPath() {
+        return localServerReceiverCallbackPath;
+    }
+
+    public int getFileFetchSize() {
+        return fileFetchSize;
+    }
+
+    public int getFolderHierarchyFetchSize() {
+        return folderHierarchyFetchSize;
+    }
+
+    public String getRootDirName() {
+        return rootDirName;
+    }
+
+    public String getTargetDirName() {
+        return targetDirName;
+    }
+
+    /**
+     * @return name of the workdocs to upload to, null if there is none
+     */
+    public String getDestination() {
+        return destination;
+    }
+
+    public boolean isDownloadOnly() {
+        return downloadOnly;
+    }
+
+    public boolean isCleanup() {
+        return cleanup;
+    }
+
+    /**
+     * Drive folders whose files are never deleted after a transfer.
+     */
+    public List<String> getDontDeleteDir() {
+        return dontDeleteDir;
+    }
+
+    /**
+     * Bytes reserved for a Google document export whose size isn't known until it's exported.
+     */
+    public long getExportSizeEstimate() {
+        return exportSizeEstimate;
+    }
+
+    public boolean isVirtualEngine() {
+        return "virtual".equals(engine);
+    }
+
+    public int getDownloadWorkers() {
+        return downloadWorkers;
+    }
+
+    public int getUploadWorkers() {
+        return uploadWorkers;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Maximum concurrent downloads, and exports. The download workers, or the transfers in flight with the virtual
+     * engine where stages don't have workers of their own. With adaptive concurrency the most it may grow to.
+     */
+    public int getDownloadConcurrency() {
+        return getMaxConcurrency(downloadWorkers);
+    }
+
+    /**
+     * Maximum concurrent uploads, see {@link #getDownloadConcurrency()}.
+     */
+    public int getUploadConcurrency() {
+        return getMaxConcurrency(uploadWorkers);
+    }
+
+    private int getMaxConcurrency(int workers) {
+        if (adaptiveConcurrency) {
+            return maxConcurrency > 0 ? maxConcurrency : isVirtualEngine() ? maxInFlight : 4 * workers;
+        }
+        return isVirtualEngine() ? maxInFlight : workers;
+    }
+
+    /**
+     * Whether the concurrency of each kind of operation adapts to latency and throttling, see
+     * {@link ConcurrencyLimit}. It starts at the stage's workers.
+     */
+    public boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public double getBackoffRatio() {
+        return backoffRatio;
+    }
+
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    /**
+     * @return bytes per second this gdrive may download, 0 for no limit
+     */
+    public long getDownloadBytesPerSecond() {
+        return downloadBytesPerSecond;
+    }
+
+    /**
+     * @return bytes per second this gdrive may upload, 0 for no limit
+     */
+    public long getUploadBytesPerSecond() {
+        return uploadBytesPerSecond;
+    }
+
+    /**
+     * @return hours of the day the bandwidth limits apply, null for all day
+     */
+    public BandwidthLimit.Hours getBandwidthHours() {
+        return bandwidthHours;
+    }
+
+    /**
+     * @return bytes the staged files may take up, 0 for no limit
+     */
+    public long getStagingBytes() {
+        return stagingBytes;
+    }
+
+    public boolean isStagingEviction() {
+        return stagingEviction;
+    }
+
+    /**
+     * @return seconds between polls in daemon mode
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    public int getVerifyWorkers() {
+        return verifyWorkers;
+    }
+
+    public double getVerifySampleRate() {
+        return verifySampleRate;
+    }
+
+    /**
+     * @return directory shared by the workers of a sharded gdrive, null if it isn't sharded
+     */
+    public String getCoordinationDir() {
+        return coordinationDir;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getShardsPerClaim() {
+        return shardsPerClaim;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    public boolean isSharedDrives() {
+        return sharedDrives;
+    }
+
+    public boolean isMyDrive() {
+        return myDrive;
+    }
+
+    public String getSharedDrivesDirName() {
+        return sharedDrivesDirName;
+    }
+
+    /**
+     * @return the shared drives to migrate, empty for all of them
+     */
+    public List<String> getSharedDriveNames() {
+        return sharedDriveNames;
+    }
+
+    public int getSharedDriveParallelism() {
+        return sharedDriveParallelism;
+    }
+
+    /**
+     * Whether the destination folders are created up front, after listing the Drive folders, rather than on the way
+     * by the first upload into each of them.
+     */
+    public boolean isPrecreateFolders() {
+        return precreateFolders;
+    }
+
+    /**
+     * @return folders of a level created in parallel
+     */
+    public int getFolderWorkers() {
+        return folderWorkers;
+    }
+
+    /**
+     * @return the files to transfer
+     */
+    public SyncFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Whether files with the same content, by checksum and size, transferred around the same time are downloaded
+     * once and uploaded to each of their paths from the one staged copy.
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * Whether this and {@code other} transfer the same files to the same place, differing at most in tuning
+     * settings like workers or bandwidth.
+     */
+    public boolean isSameTransfer(GDriveConfig other) {
+        Map<String, Object> these = new LinkedHashMap<>(values);
+        Map<String, Object> those = new LinkedHashMap<>(other.values);
+        these.keySet().removeAll(TUNING);
+        those.keySet().removeAll(TUNING);
+        return these.equals(those);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof GDriveConfig && values.equals(((GDriveConfig) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "gdrive [" + name + "]";
+    }
+}
@@ -5,7 +5,6 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -13,17 +12,19 @@ import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.DateTime;
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Preconditions;
-import com.google.api.client.util.store.DataStoreFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.client.util.store.MemoryDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.TeamDrive;
+import com.google.api.services.drive.model.TeamDriveList;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,15 +32,17 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static humanize.Humanize.binaryPrefix;
-import static ie.binary.gdrive2workdocs.DataUtils.DELIMITER;
-import static ie.binary.gdrive2workdocs.DataUtils.getDataStoreDir;
-import static org.apache.commons.lang3.BooleanUtils.toBoolean;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
-import static org.apache.commons.lang3.StringUtils.split;
 
 public class GDriveHelper {
 
@@ -53,65 +56,99 @@ public class GDriveHelper {
             Arrays.asList(DriveScopes.DRIVE_FILE,
                     DriveScopes.DRIVE_APPDATA,
                     DriveScopes.DRIVE);
-    /**
-     * Global instance of the {@link FileDataStoreFactory}.
-     */
-    private static DataStoreFactory DATA_STORE_FACTORY;
-    /**
-     * Global instance of the HTTP transport.
-     */
-    private static HttpTransport HTTP_TRANSPORT;
     private static Logger log = LoggerFactory.getLogger(GDriveHelper.class);
-
-    static {
-        try {
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-            DATA_STORE_FACTORY = new FileDataStoreFactory(getDataStoreDir());
-        } catch (Throwable t) {
-            t.printStackTrace();
-            System.exit(1);
-        }
-    }
+    static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
 
     /**
      * Global instance of the JSON factory.
      */
     private final JsonFactory JSON_FACTORY =
             JacksonFactory.getDefaultInstance();
-    private final int fileFetchSize;
-    private final int folderHierarchyFetchSize;
-    private final String localServerReceiverHost;
-    private final String clientId;
-    private final String clientSecret;
-    private final String localServerReceiverCallbackPath;
-    private final String applicationName;
-    private final int localServerReceiverPort;
-    private final Map<String, String> SETTINGS;
-    private BiMap<String, String> folderHierarchy;
+    private final Config config;
+    private final GDriveConfig SETTINGS;
+    /**
+     * Shared drive this helper works on, null for the authorising user's My Drive.
+     */
+    private final String teamDriveId;
+    private final Map<String, GDriveHelper> sharedDrives = new ConcurrentHashMap<>();
+    private ConcurrencyLimit downloadLimit;
+    private ConcurrencyLimit exportLimit;
+    private ConcurrencyLimit uploadLimit;
+    private BandwidthLimit downloadBandwidth;
+    private BandwidthLimit uploadBandwidth;
+    private StagingBudget stagingBudget;
+    private java.io.File stagingDir;
+    private volatile BiMap<String, String> folderHierarchy;
     private Drive service;
+    private WorkDocsHelper destination;
+    private String startPageToken;
+    /**
+     * Files whose transfer failed, retried on the next poll. They stay here until a transfer of theirs completes, so
+     * that a poll that fails or is stopped before getting to them doesn't lose them.
+     */
+    private final Map<String, File> failed = new ConcurrentHashMap<>();
+    /**
+     * Shared drive helpers of the helper this one replaced, by drive id, whose polling their successors resume.
+     */
+    private final Map<String, GDriveHelper> resumed = new ConcurrentHashMap<>();
+    private volatile boolean stopping;
 
 
+    /**
+     * Helper for a gdrive of the current {@link Config}.
+     */
     public GDriveHelper(String name) {
-        SETTINGS = DataUtils.getGdriveSettings(name);
-        if (SETTINGS == null || SETTINGS.isEmpty()) {
-            throw new java.lang.IllegalArgumentException("GDrive settings don't exist for: " + name);
-        }
+        this(Config.get(), name);
+    }
 
+    public GDriveHelper(Config config, String name) {
+        this(config, config.getGdrive(name), null);
+    }
 
-        fileFetchSize = NumberUtils.toInt(SETTINGS.getOrDefault("fileFetchSize", "1000"));
-        folderHierarchyFetchSize = NumberUtils.toInt(SETTINGS.getOrDefault("folderHierarchyFetchSize", "1000"));
-        localServerReceiverPort = NumberUtils.toInt(SETTINGS.getOrDefault("localServerReceiverPort", "5432"));
-        localServerReceiverHost = SETTINGS.getOrDefault("localServerReceiverHost", "localhost");
-        localServerReceiverCallbackPath = SETTINGS.getOrDefault("localServerReceiverCallbackPath", "/Callback");
-        applicationName = SETTINGS.getOrDefault("applicationName", "gdrive2workdocs");
-        clientId = SETTINGS.get("clientId");
-        clientSecret = SETTINGS.get("clientSecret");
+    /**
+     * Helper for a shared drive, sharing the Drive service, the destination and the concurrency limits of the
+     * My Drive helper, they're all subject to the same quotas.
+     */
+    private GDriveHelper(GDriveHelper parent, TeamDrive teamDrive) {
+        this(parent.config, parent.SETTINGS.forSharedDrive(teamDrive.getName()), teamDrive.getId());
+        service = parent.service;
+        destination = parent.destination;
+        downloadLimit = parent.downloadLimit;
+        exportLimit = parent.exportLimit;
+        uploadLimit = parent.uploadLimit;
+        downloadBandwidth = parent.downloadBandwidth;
+        uploadBandwidth = parent.uploadBandwidth;
+        stagingBudget = parent.stagingBudget;
+        stagingDir = parent.stagingDir;
+    }
 
-        Preconditions.checkArgument(isNotBlank(localServerReceiverHost), "Empty localServerReceiverHost");
-        Preconditions.checkArgument(isNotBlank(localServerReceiverCallbackPath), "Empty localServerReceiverCallbackPath");
-        Preconditions.checkArgument(isNotBlank(applicationName), "Empty applicationName");
-        Preconditions.checkArgument(isNotBlank(clientId), "Empty clientId");
-        Preconditions.checkArgument(isNotBlank(clientSecret), "Empty clientSecret");
+    private GDriveHelper(Config config, GDriveConfig settings, String teamDriveId) {
+        this.config = config;
+        SETTINGS = settings;
+        this.teamDriveId = teamDriveId;
+
+        Preconditions.checkArgument(isNotBlank(SETTINGS.getLocalServerReceiverHost()), "Empty localServerReceiverHost");
+        Preconditions.checkArgument(isNotBlank(SETTINGS.getLocalServerReceiverCallbackPath()), "Empty localServerReceiverCallbackPath");
+        Preconditions.checkArgument(isNotBlank(SETTINGS.getApplicationName()), "Empty applicationName");
+
+        // Kept for the lifetime of the helper, so the daemon doesn't start from scratch on every poll
+        downloadLimit = newConcurrencyLimit("[" + SETTINGS.getName() + "] download", SETTINGS.getDownloadWorkers(), SETTINGS.getDownloadConcurrency());
+        exportLimit = newConcurrencyLimit("[" + SETTINGS.getName() + "] export", SETTINGS.getDownloadWorkers(), SETTINGS.getDownloadConcurrency());
+        uploadLimit = newConcurrencyLimit("[" + SETTINGS.getName() + "] upload", SETTINGS.getUploadWorkers(), SETTINGS.getUploadConcurrency());
+        downloadBandwidth = new BandwidthLimit("[" + SETTINGS.getName() + "] download bandwidth",
+                SETTINGS.getDownloadBytesPerSecond(), SETTINGS.getBandwidthHours());
+        uploadBandwidth = new BandwidthLimit("[" + SETTINGS.getName() + "] upload bandwidth",
+                SETTINGS.getUploadBytesPerSecond(), SETTINGS.getBandwidthHours());
+        stagingBudget = new StagingBudget(SETTINGS.getStagingBytes(), SETTINGS.isStagingEviction());
+        stagingDir = new java.io.File(config.getDataStoreDir(), SETTINGS.getTargetDirName());
+    }
+
+    private ConcurrencyLimit newConcurrencyLimit(String name, int workers, int max) {
+        if (!SETTINGS.isAdaptiveConcurrency()) {
+            return new ConcurrencyLimit(name, max);
+        }
+        return new ConcurrencyLimit(name, workers, SETTINGS.getMinConcurrency(), max,
+                SETTINGS.getBackoffRatio(), SETTINGS.getLatencyTolerance());
     }
 
     /**
@@ -133,28 +170,28 @@ public class GDriveHelper {
         //clientSecrets.set("client_secret", clientSecret);
 
         GoogleClientSecrets.Details details = new GoogleClientSecrets.Details();
-        details.setClientId(clientId);
-        details.setClientSecret(clientSecret);
+        details.setClientId(SETTINGS.getClientId());
+        details.setClientSecret(SETTINGS.getClientSecret());
         clientSecrets.setInstalled(details);
 
 
         // Build flow and trigger user authorization request.
         GoogleAuthorizationCodeFlow flow =
                 new GoogleAuthorizationCodeFlow.Builder(
-                        HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
-                        .setDataStoreFactory(DATA_STORE_FACTORY)
+                        getHttpTransport(), JSON_FACTORY, clientSecrets, SCOPES)
+                        .setDataStoreFactory(new FileDataStoreFactory(config.getDataStoreDir()))
                         .setAccessType("offline")
                         .build();
 
 
         LocalServerReceiver localServerReceiver = new LocalServerReceiver.Builder()
-                .setHost(localServerReceiverHost)
-                .setPort(localServerReceiverPort)
-                .setCallbackPath(localServerReceiverCallbackPath).build();
+                .setHost(SETTINGS.getLocalServerReceiverHost())
+                .setPort(SETTINGS.getLocalServerReceiverPort())
+                .setCallbackPath(SETTINGS.getLocalServerReceiverCallbackPath()).build();
 
         Credential credential = new AuthorizationCodeInstalledApp(
                 flow, localServerReceiver).authorize("user");
-        log.info("Credentials saved to " + getDataStoreDir().getAbsolutePath());
+        log.info("Credentials saved to " + config.getDataStoreDir().getAbsolutePath());
         return credential;
     }
 
@@ -164,70 +201,442 @@ public class GDriveHelper {
      * @return an authorized Drive client service
      * @throws IOException
      */
-    public Drive getDriveService() throws IOException {
+    public synchronized Drive getDriveService() throws IOException {
         if (service == null) {
             Credential credential = authorize();
             service = new Drive.Builder(
-                    HTTP_TRANSPORT, JSON_FACTORY, credential)
-                    .setApplicationName(applicationName)
+                    getHttpTransport(), JSON_FACTORY, Transports.configure(config, credential))
+                    .setApplicationName(Transports.userAgent(config, SETTINGS.getApplicationName()))
                     .build();
         }
         return service;
     }
 
+    /**
+     * The HTTP transport shared with every other helper.
+     */
+    private HttpTransport getHttpTransport() throws IOException {
+        try {
+            return Transports.getGoogleTransport(config);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not create the Google HTTP transport", e);
+        }
+    }
+
+    /**
+     * Migrates the gdrive and, with sharedDrives, each of its shared drives at the same time.
+     */
     public void start() throws IOException {
-        WorkDocsHelper awsDestination = null;
+        forEachDrive(GDriveHelper::startDrive);
+    }
+
+    /**
+     * Transfers what changed since the last poll, or everything on the first one, in the gdrive and, with
+     * sharedDrives, each of its shared drives at the same time.
+     */
+    public void poll() throws IOException {
+        forEachDrive(GDriveHelper::pollDrive);
+    }
 
+    void forEachDrive(DriveTask task) throws IOException {
+        if (teamDriveId != null || !SETTINGS.isSharedDrives()) {
+            task.run(this);
+            return;
+        }
 
-        boolean downloadOnly = toBoolean(SETTINGS.getOrDefault("downloadOnly", "false"));
-        boolean cleanup = toBoolean(SETTINGS.getOrDefault("cleanup", "false"));
-        String destinationName = SETTINGS.get("destination");
+        List<GDriveHelper> drives = new ArrayList<>();
+        if (SETTINGS.isMyDrive()) {
+            drives.add(this);
+        }
+        drives.addAll(getSharedDrives());
 
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(SETTINGS.getSharedDriveParallelism(), drives.size())));
+        try {
+            Map<GDriveHelper, Future<?>> results = new LinkedHashMap<>();
+            for (GDriveHelper drive : drives) {
+                results.put(drive, pool.submit(() -> {
+                    task.run(drive);
+                    return null;
+                }));
+            }
 
-        if (!downloadOnly && isNotBlank(destinationName)) {
-            awsDestination = new WorkDocsHelper(destinationName);
+            for (Map.Entry<GDriveHelper, Future<?>> result : results.entrySet()) {
+                try {
+                    result.getValue().get();
+                } catch (ExecutionException e) {
+                    log.error("[" + result.getKey().SETTINGS.getName() + "] failed: " + e.getCause().getMessage(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring shared drives", e);
+        } finally {
+            pool.shutdown();
         }
+    }
 
+    /**
+     * Helpers for the shared drives the user is a member of, optionally only the ones named in sharedDriveNames.
+     * Helpers are kept between calls so their folder index and changes token stay warm.
+     */
+    private List<GDriveHelper> getSharedDrives() throws IOException {
+        getDriveService();
+        getDestination();
+
+        Set<String> included = new HashSet<>(SETTINGS.getSharedDriveNames());
+
+        List<GDriveHelper> drives = new ArrayList<>();
+        String pageToken = null;
+        do {
+            TeamDriveList result = getDriveService().teamdrives().list()
+                    .setPageSize(100)
+                    .setFields("nextPageToken, teamDrives(id, name)")
+                    .setPageToken(pageToken)
+                    .execute();
+            for (TeamDrive teamDrive : result.getTeamDrives()) {
+                if (included.isEmpty() || included.contains(teamDrive.getName())) {
+                    drives.add(sharedDrives.computeIfAbsent(teamDrive.getId(), id -> {
+                        GDriveHelper drive = new GDriveHelper(this, teamDrive);
+                        GDriveHelper previous = resumed.remove(id);
+                        if (previous != null) {
+                            drive.resumeFrom(previous);
+                        }
+                        return drive;
+                    }));
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
 
+        log.info("{} shared drives", drives.size());
+        return drives;
+    }
+
+    /**
+     * Lists files in this helper's drive only.
+     */
+    private Drive.Files.List newListRequest() throws IOException {
+        Drive.Files.List request = getDriveService().files().list();
+        if (teamDriveId != null) {
+            request.setCorpora("teamDrive")
+                    .setTeamDriveId(teamDriveId)
+                    .setIncludeTeamDriveItems(true)
+                    .setSupportsTeamDrives(true);
+        }
+        return request;
+    }
+
+    private void startDrive() throws IOException {
         buildFolderHierarchy();
+        createTargetFolders();
 
-        FileList result = getDriveService().files().list()
-                .setPageSize(fileFetchSize)
-                //.setQ("'root' in parents and trashed = false")
-                .setFields("nextPageToken, files(id, name, parents, kind, mimeType, modifiedTime, md5Checksum, size)")
-                .setOrderBy("quotaBytesUsed")
-                .execute();
-        List<File> files = result.getFiles();
-        if (files == null || files.size() == 0) {
-            log.info("No files found.");
-        } else {
-            log.info(files.size() + " files");
-            for (File file : files) {
+        try {
+            if (isNotBlank(SETTINGS.getCoordinationDir())) {
+                startSharded();
+                return;
+            }
+
+            TransferPipeline pipeline = newPipeline();
+            long files;
+            try {
+                files = listFiles(file -> submit(pipeline, file));
+            } finally {
+                pipeline.await();
+            }
+
+            if (files == 0) {
+                log.info("No files found.");
+            } else {
+                log.info(files + " files");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring files", e);
+        }
+    }
+
+    /**
+     * Transfers the shards this worker can claim until every shard of the gdrive is done, see
+     * {@link ShardCoordinator}. The gdrive is listed once and the files are routed to the shards as they're claimed.
+     */
+    private void startSharded() throws IOException, InterruptedException {
+        ShardCoordinator coordinator = new ShardCoordinator(SETTINGS);
+        try {
+            List<File> files = new ArrayList<>();
+            listFiles(files::add);
+            log.info("{} files to split between shards", files.size());
+
+            while (!stopping && !coordinator.isFinished()) {
+                Set<Integer> shards = coordinator.claim();
+                if (shards.isEmpty()) {
+                    log.info("Remaining shards are leased by other workers, waiting ...");
+                    coordinator.awaitLeases();
+                    continue;
+                }
 
+                log.info("Transferring shards {}", shards);
+                TransferPipeline pipeline = newPipeline();
+                pipeline.setListener(file -> {
+                    failed.remove(file.getId());
+                    coordinator.complete(file);
+                });
+                pipeline.setFailureListener(file -> {
+                    failed.put(file.getId(), file);
+                    coordinator.fail(file);
+                });
                 try {
-                    List<java.io.File> downloadFiles = downloadFile(file);
-
-                    if (!downloadFiles.isEmpty() && awsDestination != null) {
-                        List<Boolean> uploadPassed = new ArrayList<>(downloadFiles.size());
-                        for (java.io.File downloadFile : downloadFiles) {
-                            if (awsDestination.uploadFile(downloadFile) && cleanup) {
-                                uploadPassed.add(true);
-                                downloadFile.delete();
-                            }
+                    for (File file : files) {
+                        if (shards.contains(coordinator.shardOf(file.getId()))
+                                && !coordinator.isCompleted(file.getId())) {
+                            submit(pipeline, file);
                         }
+                    }
+                } finally {
+                    pipeline.await();
+                }
 
-                        if (cleanup && uploadPassed.size() == downloadFiles.size()) {
-                            deleteFile(file);
-                        }
+                if (stopping) {
+                    coordinator.release(shards);
+                } else {
+                    coordinator.finish(shards);
+                }
+            }
+        } finally {
+            coordinator.close();
+        }
+    }
+
+    /**
+     * Lists the files of the gdrive its filter selects, one page at a time. The folder hierarchy has to be built.
+     *
+     * @return the number of files listed
+     */
+    long listFiles(FileHandler handler) throws IOException, InterruptedException {
+        SyncFilter filter = SETTINGS.getFilter();
+        String query = filter.toQuery();
+        if (query != null) {
+            log.info("Listing files matching: {}", query);
+        }
+
+        long count = 0;
+        String pageToken = null;
+        do {
+            FileList result;
+            try (Trace trace = Trace.start(Trace.Phase.LISTING, null, SETTINGS.getName(), 0, null)) {
+                result = newListRequest()
+                        .setPageSize(SETTINGS.getFileFetchSize())
+                        .setQ(query)
+                        .setFields("nextPageToken, files(id, name, parents, kind, mimeType, modifiedTime, md5Checksum, size, trashed, ownedByMe)")
+                        .setOrderBy("quotaBytesUsed")
+                        .setPageToken(pageToken)
+                        .execute();
+                long listed = 0;
+                if (result.getFiles() != null) {
+                    for (File file : result.getFiles()) {
+                        listed += file.getSize() == null ? 0 : file.getSize();
                     }
-                } catch (IOException e) {
-                    log.error(e.getMessage(), e);
+                }
+                trace.setSize(listed).setOutcome(Trace.OK);
+            }
+            List<File> files = result.getFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (isSelected(file)) {
+                        handler.handle(file);
+                        count++;
+                    }
+                }
+            }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null && !stopping);
+
+        return count;
+    }
+
+    private boolean isSelected(File file) {
+        return SETTINGS.getFilter().matches(file, getParentPath(file));
+    }
+
+    private void pollDrive() throws IOException {
+        if (startPageToken == null) {
+            // Taken before the full run so that nothing changed during it is missed
+            Drive.Changes.GetStartPageToken request = getDriveService().changes().getStartPageToken();
+            if (teamDriveId != null) {
+                request.setTeamDriveId(teamDriveId).setSupportsTeamDrives(true);
+            }
+            String token = request.execute().getStartPageToken();
+            startDrive();
+            startPageToken = token;
+            return;
+        }
+
+        // Failed transfers are retried first, unless they changed again
+        Map<String, File> changed = new LinkedHashMap<>(failed);
+        boolean foldersChanged = false;
+        String pageToken = startPageToken;
+        String newStartPageToken = null;
+        while (pageToken != null) {
+            Drive.Changes.List request = getDriveService().changes().list(pageToken)
+                    .setPageSize(SETTINGS.getFileFetchSize())
+                    .setFields("nextPageToken, newStartPageToken, changes(fileId, removed, file(id, name, parents, kind, mimeType, modifiedTime, md5Checksum, size, trashed, ownedByMe))");
+            if (teamDriveId != null) {
+                request.setTeamDriveId(teamDriveId).setIncludeTeamDriveItems(true).setSupportsTeamDrives(true);
+            }
+            ChangeList changes = request.execute();
+            for (Change change : changes.getChanges()) {
+                File file = change.getFile();
+                if (Boolean.TRUE.equals(change.getRemoved()) || file == null || Boolean.TRUE.equals(file.getTrashed())) {
+                    changed.remove(change.getFileId());
+                    failed.remove(change.getFileId());
+                    continue;
+                }
+
+                if (FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+                    foldersChanged = true;
+                } else {
+                    changed.put(file.getId(), file);
                 }
             }
+            pageToken = changes.getNextPageToken();
+            newStartPageToken = changes.getNewStartPageToken();
         }
+
+        log.info("{} changed or failed files", changed.size());
+        if (!changed.isEmpty()) {
+            if (foldersChanged || folderHierarchy == null) {
+                buildFolderHierarchy();
+                createTargetFolders();
+            }
+            transfer(handler -> {
+                for (File file : changed.values()) {
+                    if (isSelected(file)) {
+                        handler.handle(file);
+                    } else {
+                        failed.remove(file.getId());
+                    }
+                }
+            });
+        }
+
+        if (!stopping && newStartPageToken != null) {
+            startPageToken = newStartPageToken;
+        }
+    }
+
+    /**
+     * Continues polling where {@code previous}, a helper of the same gdrive whose settings changed in ways that don't
+     * affect what is transferred where, left off: from its changes token and with its failed files.
+     * {@code previous} mustn't be polling anymore.
+     */
+    public void resumeFrom(GDriveHelper previous) {
+        startPageToken = previous.startPageToken;
+        failed.putAll(previous.failed);
+        resumed.putAll(previous.resumed);
+        for (GDriveHelper sharedDrive : previous.sharedDrives.values()) {
+            resumed.put(sharedDrive.teamDriveId, sharedDrive);
+        }
+    }
+
+    /**
+     * Stops submitting new transfers, the ones in flight are finished.
+     */
+    public void stop() {
+        log.info("Stopping, not starting any more transfers");
+        stopping = true;
+        for (GDriveHelper sharedDrive : sharedDrives.values()) {
+            sharedDrive.stop();
+        }
+    }
+
+    public GDriveConfig getSettings() {
+        return SETTINGS;
     }
 
-    private void deleteFile(File file) throws IOException {
+    public Config getConfig() {
+        return config;
+    }
+
+    ConcurrencyLimit getDownloadLimit() {
+        return downloadLimit;
+    }
+
+    /**
+     * Exports of Google documents are limited separately from downloads, Drive throttles them differently.
+     */
+    ConcurrencyLimit getExportLimit() {
+        return exportLimit;
+    }
+
+    ConcurrencyLimit getUploadLimit() {
+        return uploadLimit;
+    }
+
+    /**
+     * Shared with the shared drives, whose files are staged below the gdrive's. Files already staged are accounted
+     * for on first use, unless they're uploaded and cleaned up.
+     */
+    StagingBudget getStagingBudget() {
+        if (getDestination() == null || !SETTINGS.isCleanup()) {
+            stagingBudget.seed(stagingDir);
+        }
+        return stagingBudget;
+    }
+
+    /**
+     * @return the settings the destination was created with, null if it wasn't created
+     */
+    public synchronized WorkDocsConfig getDestinationSettings() {
+        return destination == null ? null : destination.getSettings();
+    }
+
+    synchronized WorkDocsHelper getDestination() {
+        String destinationName = SETTINGS.getDestination();
+
+        if (destination == null && !SETTINGS.isDownloadOnly() && isNotBlank(destinationName)) {
+            destination = new WorkDocsHelper(config, destinationName, uploadBandwidth);
+        }
+
+        return destination;
+    }
+
+    private TransferPipeline newPipeline() {
+        TransferPipeline pipeline = new TransferPipeline(this, getDestination());
+        pipeline.setListener(file -> failed.remove(file.getId()));
+        pipeline.setFailureListener(file -> failed.put(file.getId(), file));
+        return pipeline;
+    }
+
+    private void submit(TransferPipeline pipeline, File file) throws InterruptedException {
+        if (!stopping) {
+            pipeline.submit(file);
+        }
+    }
+
+    /**
+     * Transfers the files of {@code files}, typically a listing or a plan, as they come.
+     */
+    void transfer(FileSource files) throws IOException {
+        TransferPipeline pipeline = newPipeline();
+        try {
+            try {
+                files.forEach(file -> submit(pipeline, file));
+            } finally {
+                pipeline.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transferring files", e);
+        }
+    }
+
+    /**
+     * @return the id of the shared drive, null for My Drive
+     */
+    String getTeamDriveId() {
+        return teamDriveId;
+    }
+
+    void deleteFile(File file) throws IOException {
         boolean delete = true;
         String parentPath = getParentPath(file);
         if (parentPath == null) {
@@ -239,14 +648,10 @@ public class GDriveHelper {
         }
 
 
-        String dontDeleteDir = SETTINGS.getOrDefault("dontDeleteDir", "");
-        if (isNotBlank(dontDeleteDir)) {
-            List<String> dirPaths = Arrays.asList(split(dontDeleteDir, DELIMITER));
-            for (String dirPath : dirPaths) {
-                if (parentPath.startsWith(dirPath)) {
-                    delete = false;
-                    break;
-                }
+        for (String dirPath : SETTINGS.getDontDeleteDir()) {
+            if (parentPath.startsWith(dirPath)) {
+                delete = false;
+                break;
             }
         }
 
@@ -258,48 +663,77 @@ public class GDriveHelper {
         }
     }
 
-    private void buildFolderHierarchy() throws IOException {
+    void buildFolderHierarchy() throws IOException {
 
         log.info("Building folderHierarchy ...");
 
-        Map<String, String> idNameMap = new HashMap<>();
-        Map<String, String> parentIdMap = new HashMap<>();
         Map<String, File> folders = new HashMap<>();
 
-        FileList result = getDriveService().files().list()
-                .setPageSize(folderHierarchyFetchSize)
-                .setQ("mimeType = 'application/vnd.google-apps.folder'")
-                .setFields("nextPageToken, files(id, name, parents)")
-                .execute();
-        List<File> files = result.getFiles();
-        if (files == null || files.size() == 0) {
-            log.info("No folders found.");
-        } else {
-            for (File file : files) {
-                folders.put(file.getId(), file);
-                idNameMap.put(file.getId(), file.getName());
-                List<String> parents = file.getParents();
-                if (parents != null) {
-                    for (String parentId : file.getParents()) {
-                        parentIdMap.put(file.getId(), parentId);
-                    }
+        String pageToken = null;
+        do {
+            FileList result = newListRequest()
+                    .setPageSize(SETTINGS.getFolderHierarchyFetchSize())
+                    .setQ("mimeType = 'application/vnd.google-apps.folder'")
+                    .setFields("nextPageToken, files(id, name, parents)")
+                    .setPageToken(pageToken)
+                    .execute();
+            List<File> files = result.getFiles();
+            if (files != null) {
+                for (File file : files) {
+                    folders.put(file.getId(), file);
                 }
             }
+            pageToken = result.getNextPageToken();
+        } while (pageToken != null);
 
-
+        if (folders.isEmpty()) {
+            log.info("No folders found.");
         }
 
 
-        folderHierarchy = HashBiMap.create();
-        for (File file : files) {
-            String path = determineFullPath(folders, file);
+        Map<String, String> paths = new HashMap<>();
+        BiMap<String, String> folderHierarchy = HashBiMap.create();
+        for (File file : folders.values()) {
+            String path = determineFullPath(folders, paths, file);
             folderHierarchy.forcePut(file.getId(), path);
         }
+        this.folderHierarchy = folderHierarchy;
 
         log.info("folderHierarchy Size:" + folderHierarchy.size());
     }
 
-    private String determineFullPath(Map<String, File> folders, File folder) {
+    /**
+     * Creates the destination folders of all the Drive folders that don't exist yet, level by level, so that uploads
+     * only have to look their folder up. Does nothing without a destination.
+     */
+    void createTargetFolders() throws IOException {
+        WorkDocsHelper destination = getDestination();
+        if (destination == null || !SETTINGS.isPrecreateFolders()) {
+            return;
+        }
+
+        Set<String> folderPaths = new HashSet<>();
+        folderPaths.add(toTargetFolderPath(SETTINGS.getRootDirName()));
+        for (String path : folderHierarchy.values()) {
+            if (SETTINGS.getFilter().includesFolder(path)) {
+                folderPaths.add(toTargetFolderPath(path));
+            }
+        }
+
+        try {
+            destination.createFolders(folderPaths, SETTINGS.getFolderWorkers());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating folders", e);
+        }
+    }
+
+    private String determineFullPath(Map<String, File> folders, Map<String, String> paths, File folder) {
+
+        String path = paths.get(folder.getId());
+        if (path != null) {
+            return path;
+        }
 
         List<String> parents = folder.getParents();
         File parent = null;
@@ -309,27 +743,27 @@ public class GDriveHelper {
         }
 
 
+        String parentPath;
         if (parent == null) {
-            String rootDirName = SETTINGS.getOrDefault("rootDirName", "");
-            if (!rootDirName.startsWith("/")) {
-                rootDirName = "/" + rootDirName;
-            }
-            return rootDirName;
+            // Top level folder, its parent is the root of the drive
+            parentPath = SETTINGS.getRootDirName();
+        } else {
+            parentPath = determineFullPath(folders, paths, parent);
         }
 
-        String parentPath = determineFullPath(folders, parent);
         if (!parentPath.startsWith("/")) {
             parentPath = "/" + parentPath;
         }
 
-        parentPath = parentPath + parent.getName() + "/" + folder.getName();
+        path = parentPath.endsWith("/") ? parentPath + folder.getName() : parentPath + "/" + folder.getName();
+        paths.put(folder.getId(), path);
 
-        return parentPath;
+        return path;
     }
 
     private String getParentPath(File file) {
         List<String> parents = file.getParents();
-        String rootDirName = SETTINGS.getOrDefault("rootDirName", "");
+        String rootDirName = SETTINGS.getRootDirName();
         String parentPath = rootDirName;
         if (parents != null && !parents.isEmpty()) {
             String parentId = parents.get(0);
@@ -343,30 +777,68 @@ public class GDriveHelper {
         return parentPath;
     }
 
-    private List<java.io.File> downloadFile(File driveFile) throws IOException {
-        String fileName = driveFile.getName();
-        fileName = fileName.replace("/", "-");
+    /**
+     * Path of the folder a file is downloaded to, relative to the data store. Also its folder path in WorkDocs.
+     */
+    String getTargetFolderPath(File driveFile) {
+        return toTargetFolderPath(getParentPath(driveFile));
+    }
 
-        String parentPath = getParentPath(driveFile);
+    /**
+     * Path of the folder the root of the drive is downloaded to, relative to the data store. Also its folder path in
+     * WorkDocs.
+     */
+    String getTargetRootPath() {
+        return toTargetFolderPath(SETTINGS.getRootDirName());
+    }
+
+    /**
+     * Drive path of the folder a target folder path was made from.
+     */
+    String toDriveFolderPath(String targetFolderPath) {
+        String targetDirName = SETTINGS.getTargetDirName();
+        String path = targetFolderPath.startsWith(targetDirName)
+                ? targetFolderPath.substring(targetDirName.length()) : targetFolderPath;
+        return path.startsWith("/") ? path : "/" + path;
+    }
 
+    private String toTargetFolderPath(String parentPath) {
         if (parentPath.startsWith("/")) {
             parentPath = parentPath.substring(1);
         }
 
-        String targetDirName = SETTINGS.getOrDefault("targetDirName", "GDrive");
+        String targetDirName = SETTINGS.getTargetDirName();
 
-        java.io.File parentFile = new java.io.File(new java.io.File(getDataStoreDir(), targetDirName), parentPath);
-        parentFile.mkdirs();
+        return parentPath.isEmpty() ? targetDirName : targetDirName + "/" + parentPath;
+    }
 
-        DateTime modifiedTime = driveFile.getModifiedTime();
+    /**
+     * Names of the files a file is downloaded as, one per export format for Google documents.
+     */
+    List<String> getTargetNames(File driveFile) {
+        String fileName = driveFile.getName();
+        fileName = fileName.replace("/", "-");
 
+        List<String> exportMimeTypes = getExportMimeTypes(driveFile.getMimeType());
+        if (exportMimeTypes.isEmpty()) {
+            return Collections.singletonList(fileName);
+        }
 
-        String mimeType = driveFile.getMimeType();
+        List<String> names = new ArrayList<>();
+        for (String exportMimeType : exportMimeTypes) {
+            String ext = config.getExtensionSuffix(exportMimeType);
 
+            if (!isNullOrEmpty(ext)) {
+                String extension = "." + ext;
+                names.add(fileName.endsWith(extension) ? fileName : fileName + extension);
+            }
+        }
+        return names;
+    }
+
+    static List<String> getExportMimeTypes(String mimeType) {
         List<String> exportMimeTypes = new ArrayList<>();
         switch (mimeType) {
-            case "application/vnd.google-apps.folder":
-                return new ArrayList<>();
             case "application/vnd.google-apps.document":
                 exportMimeTypes.add("application/vnd.openxmlformats-officedocument.wordprocessingml.document"); // MS Word document
                 // exportMimeTypes.add("application/vnd.oasis.opendocument.text"); // Open Office doc
@@ -386,6 +858,33 @@ public class GDriveHelper {
                 exportMimeTypes.add("application/pdf"); // PDF
                 break;
         }
+        return exportMimeTypes;
+    }
+
+    List<java.io.File> downloadFile(File driveFile) throws IOException {
+        String fileName = driveFile.getName();
+        fileName = fileName.replace("/", "-");
+
+        String parentPath = getParentPath(driveFile);
+
+        if (parentPath.startsWith("/")) {
+            parentPath = parentPath.substring(1);
+        }
+
+        String targetDirName = SETTINGS.getTargetDirName();
+
+        java.io.File parentFile = new java.io.File(new java.io.File(config.getDataStoreDir(), targetDirName), parentPath);
+        parentFile.mkdirs();
+
+        DateTime modifiedTime = driveFile.getModifiedTime();
+
+
+        String mimeType = driveFile.getMimeType();
+
+        if (FOLDER_MIME_TYPE.equals(mimeType)) {
+            return new ArrayList<>();
+        }
+        List<String> exportMimeTypes = getExportMimeTypes(mimeType);
 
 
         Drive.Files driveFiles = getDriveService().files();
@@ -398,18 +897,21 @@ public class GDriveHelper {
         if (exportMimeTypes.isEmpty()) {
             java.io.File outFile = new java.io.File(parentFile, fileName);
             OutputStream out = null;
-            try {
-                out = new FileOutputStream(outFile);
+            try (Trace trace = Trace.start(Trace.Phase.DOWNLOAD, driveFile.getId(), fileName, -1, mimeType)) {
+                out = BandwidthLimit.throttle(new FileOutputStream(outFile), downloadBandwidth, Transports.getDownloadBandwidth());
                 try {
-                    driveFiles.get(driveFile.getId()).executeMediaAndDownloadTo(out);
+                    driveFiles.get(driveFile.getId()).setSupportsTeamDrives(true).executeMediaAndDownloadTo(out);
+                    trace.setOutcome(Trace.OK);
                 } catch (HttpResponseException e1) {
                     // 416 - Requested range not satisfiable
                     if (e1.getStatusCode() == 416) {
                         log.warn("Skipped [{}]: {}", driveFile.getName(), e1.getMessage());
+                        trace.setOutcome(Trace.SKIPPED);
                     } else {
                         throw e1;
                     }
                 }
+                trace.setSize(outFile.length());
 
                 if (modifiedTime != null && modifiedTime.getValue() > 0) {
                     outFile.setLastModified(modifiedTime.getValue());
@@ -424,27 +926,30 @@ public class GDriveHelper {
             }
         } else {
             for (String exportMimeType : exportMimeTypes) {
-                String ext = DataUtils.getExtensionSuffix(exportMimeType);
+                String ext = config.getExtensionSuffix(exportMimeType);
 
                 if (!isNullOrEmpty(ext)) {
                     String extension = "." + ext;
                     String outFileName = fileName.endsWith(extension) ? fileName : fileName + extension;
                     java.io.File outFile = new java.io.File(parentFile, outFileName);
                     OutputStream out = null;
-                    try {
-                        out = new FileOutputStream(outFile);
+                    try (Trace trace = Trace.start(Trace.Phase.EXPORT, driveFile.getId(), outFileName, -1, exportMimeType)) {
+                        out = BandwidthLimit.throttle(new FileOutputStream(outFile), downloadBandwidth, Transports.getDownloadBandwidth());
 
                         try {
                             driveFiles.export(driveFile.getId(), exportMimeType).executeMediaAndDownloadTo(out);
+                            trace.setOutcome(Trace.OK);
                         } catch (HttpResponseException e1) {
                             // 416 - Requested range not satisfiable
                             if (e1.getStatusCode() == 416) {
                                 log.warn("Skipped [{}]: {}", driveFile.getName(), e1.getMessage());
                                 outFile.delete();
+                                trace.setOutcome(Trace.SKIPPED);
                             } else {
                                 throw e1;
                             }
                         }
+                        trace.setSize(outFile.length());
 
                         if (modifiedTime != null && modifiedTime.getValue() > 0) {
                             outFile.setLastModified(modifiedTime.getValue());
@@ -466,4 +971,22 @@ public class GDriveHelper {
         return downloadedFiles;
 
     }
-}
\ No newline at end of file
+
+    interface DriveTask {
+        void run(GDriveHelper drive) throws IOException;
+    }
+
+    /**
+     * Receives the files of a listing.
+     */
+    interface FileHandler {
+        void handle(File file) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Hands files to a {@link FileHandler}.
+     */
+    interface FileSource {
+        void forEach(FileHandler handler) throws IOException, InterruptedException;
+    }
+}
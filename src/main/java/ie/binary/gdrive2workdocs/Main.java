@@ -4,21 +4,73 @@ import java.io.IOException;
 
 public class Main {
 
+    /**
+     * Usage: [settings file] [run|daemon|verify|plan|execute plan-file]
+     */
     public static void main(String args[]) throws IOException {
 
-        if (args.length == 1) {
-            System.setProperty("SETTINGS_FILE", args[0]);
+        String mode = "run";
+        String planFile = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "execute":
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("execute needs a plan file");
+                    }
+                    planFile = args[++i];
+                    // Fall through
+                case "run":
+                case "daemon":
+                case "verify":
+                case "plan":
+                    mode = arg;
+                    break;
+                default:
+                    System.setProperty("SETTINGS_FILE", arg);
+            }
         }
 
         //System.setProperty("SETTINGS_FILE", "~/gdrive2workdocs/build/data/settings.yaml");
 
+        Transports.configureBandwidth(Config.get());
 
-        new Main().start();
+        switch (mode) {
+            case "daemon":
+                new Daemon(Config.get()).start();
+                break;
+            case "verify":
+                new Main().verify();
+                break;
+            case "plan":
+                new Main().plan();
+                break;
+            case "execute":
+                Planner.execute(Config.get(), new java.io.File(planFile));
+                break;
+            default:
+                new Main().start();
+        }
     }
 
     public void start() throws IOException {
-        for (String name : DataUtils.getGdriveNames()) {
-            new GDriveHelper(name).start();
+        Config config = Config.get();
+        for (String name : config.getGdriveNames()) {
+            new GDriveHelper(config, name).start();
+        }
+    }
+
+    public void verify() throws IOException {
+        Config config = Config.get();
+        for (String name : config.getGdriveNames()) {
+            new Verifier(new GDriveHelper(config, name)).verify();
+        }
+    }
+
+    public void plan() throws IOException {
+        Config config = Config.get();
+        for (String name : config.getGdriveNames()) {
+            new Planner(new GDriveHelper(config, name)).plan();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,281 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static humanize.Humanize.binaryPrefix;
+import static ie.binary.gdrive2workdocs.GDriveHelper.FOLDER_MIME_TYPE;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+/**
+ * Works out what a run would transfer without downloading or uploading anything, and executes such a plan later.
+ * <p>
+ * The plan is a tab separated file in the data store with one {@code FILE} line per file to transfer, one
+ * {@code FOLDER} line per destination folder to create and the totals in {@code #} comment lines. With sharedDrives
+ * the shared drives are planned too, {@code drive} is the id of the shared drive a file is in:
+ * <pre>
+ * # gdrive       name
+ * FILE           action  id  parentId  mimeType  size  modifiedTime  md5Checksum  exportMimeTypes  drive  folder  name
+ * FOLDER         path
+ * # files        files to transfer
+ * # skipped      files already identical in WorkDocs
+ * # bytes        bytes to transfer, with exportSizeEstimate per export
+ * # apiCalls     Drive and WorkDocs calls to make
+ * # eta          seconds, from the throughput measured by previous runs
+ * </pre>
+ */
+public class Planner {
+
+    private static Logger log = LoggerFactory.getLogger(Planner.class);
+
+    private static final String NONE = "-";
+
+    private final GDriveHelper source;
+    private final WorkDocsHelper destination;
+    private final long exportSizeEstimate;
+    private final Set<String> folders = new TreeSet<>();
+    private final Set<String> drives = ConcurrentHashMap.newKeySet();
+    private long files;
+    private long skipped;
+    private long bytes;
+    private long apiCalls;
+
+    public Planner(GDriveHelper source) {
+        this.source = source;
+        this.destination = source.getDestination();
+        exportSizeEstimate = source.getSettings().getExportSizeEstimate();
+    }
+
+    /**
+     * @return the plan file
+     */
+    public java.io.File plan() throws IOException {
+        String name = source.getSettings().getName();
+        Config config = source.getConfig();
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        java.io.File planFile = new java.io.File(config.getDataStoreDir(), "plan-" + name + "-" + timestamp + ".tsv");
+
+        log.info("Planning [{}] ...", name);
+        try (PrintWriter out = new PrintWriter(planFile, StandardCharsets.UTF_8.name())) {
+            out.println("# gdrive\t" + escape(name));
+
+            source.forEachDrive(drive -> {
+                drives.add(drive.getSettings().getName());
+                drive.buildFolderHierarchy();
+                try {
+                    drive.listFiles(file -> plan(out, drive, file));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while planning", e);
+                }
+            });
+
+            // Sorted, so parents come before their sub folders
+            for (String folder : folders) {
+                out.println("FOLDER\t" + escape(folder));
+            }
+            apiCalls += folders.size();
+
+            // Throughput is measured per drive, the drives of a gdrive are transferred at the same time
+            double bytesPerSecond = 0;
+            double filesPerSecond = 0;
+            for (String drive : drives) {
+                bytesPerSecond += Throughput.getBytesPerSecond(config, drive);
+                filesPerSecond += Throughput.getFilesPerSecond(config, drive);
+            }
+            long eta = -1;
+            if (bytesPerSecond > 0 && filesPerSecond > 0) {
+                eta = (long) Math.max(bytes / bytesPerSecond, files / filesPerSecond);
+            }
+
+            out.println("# files\t" + files);
+            out.println("# skipped\t" + skipped);
+            out.println("# folders\t" + folders.size());
+            out.println("# bytes\t" + bytes);
+            out.println("# apiCalls\t" + apiCalls);
+            out.println("# eta\t" + eta);
+
+            log.info("Plan for [{}]: {} files ({}) to transfer, {} skipped, {} folders to create, {} API calls, ETA {}",
+                    name, files, binaryPrefix(bytes), skipped, folders.size(), apiCalls,
+                    eta < 0 ? "unknown until a run was measured" : String.format("%d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        }
+        log.info("Plan written to " + planFile);
+
+        return planFile;
+    }
+
+    /**
+     * Synchronized, the drives of a gdrive are listed at the same time.
+     */
+    private synchronized void plan(PrintWriter out, GDriveHelper drive, File file) {
+        if (FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+            return;
+        }
+
+        String folderPath = drive.getTargetFolderPath(file);
+        List<String> exportMimeTypes = GDriveHelper.getExportMimeTypes(file.getMimeType());
+        List<String> names = drive.getTargetNames(file);
+        long size = exportMimeTypes.isEmpty() && file.getSize() != null ? file.getSize() : -1;
+        Date modified = file.getModifiedTime() == null ? null : new Date(file.getModifiedTime().getValue());
+
+        WorkDocsHelper.UploadAction action = WorkDocsHelper.UploadAction.NEW;
+        if (destination != null) {
+            boolean skip = true;
+            for (String name : names) {
+                WorkDocsHelper.UploadAction nameAction = destination.planUpload(folderPath, name, size, modified);
+                skip &= nameAction == WorkDocsHelper.UploadAction.SKIP;
+                if (nameAction == WorkDocsHelper.UploadAction.VERSION) {
+                    action = nameAction;
+                }
+            }
+
+            if (skip) {
+                skipped++;
+                return;
+            }
+
+            for (String path = folderPath; isNotBlank(path) && !destination.hasFolder(path); path = parentOf(path)) {
+                folders.add(path);
+            }
+        }
+
+        files++;
+        bytes += size >= 0 ? size : exportSizeEstimate * names.size();
+        // A download or an export per name, then initiate, PUT and activate for each upload
+        apiCalls += names.size() * (destination == null ? 1 : 4);
+
+        List<String> parents = file.getParents();
+        out.println("FILE\t" + action
+                + "\t" + file.getId()
+                + "\t" + (parents == null || parents.isEmpty() ? NONE : parents.get(0))
+                + "\t" + file.getMimeType()
+                + "\t" + (file.getSize() == null ? NONE : file.getSize())
+                + "\t" + (file.getModifiedTime() == null ? NONE : file.getModifiedTime().toStringRfc3339())
+                + "\t" + (file.getMd5Checksum() == null ? NONE : file.getMd5Checksum())
+                + "\t" + (exportMimeTypes.isEmpty() ? NONE : String.join(",", exportMimeTypes))
+                + "\t" + (drive.getTeamDriveId() == null ? NONE : drive.getTeamDriveId())
+                + "\t" + escape(folderPath)
+                + "\t" + escape(file.getName()));
+    }
+
+    /**
+     * Transfers the files of a plan, creating its destination folders first.
+     */
+    public static void execute(Config config, java.io.File planFile) throws IOException {
+        String name = null;
+        try (BufferedReader reader = open(planFile)) {
+            for (String line = reader.readLine(); line != null && name == null; line = reader.readLine()) {
+                if (line.startsWith("# gdrive\t")) {
+                    name = unescape(line.substring("# gdrive\t".length()));
+                }
+            }
+        }
+        if (name == null) {
+            throw new IOException("Not a plan file: " + planFile);
+        }
+
+        log.info("Executing plan {} for [{}]", planFile, name);
+        GDriveHelper source = new GDriveHelper(config, name);
+
+        WorkDocsHelper destination = source.getDestination();
+        if (destination != null) {
+            List<String> folders = new ArrayList<>();
+            try (BufferedReader reader = open(planFile)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.startsWith("FOLDER\t")) {
+                        folders.add(unescape(line.substring("FOLDER\t".length())));
+                    }
+                }
+            }
+            try {
+                destination.createFolders(folders, source.getSettings().getFolderWorkers());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while creating folders", e);
+            }
+        }
+
+        // Each drive transfers its own files
+        source.forEachDrive(drive -> {
+            drive.buildFolderHierarchy();
+            String driveId = drive.getTeamDriveId() == null ? NONE : drive.getTeamDriveId();
+            drive.transfer(handler -> {
+                try (BufferedReader reader = open(planFile)) {
+                    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                        if (line.startsWith("FILE\t")) {
+                            String[] columns = StringUtils.splitPreserveAllTokens(line, '\t');
+                            if (driveId.equals(columns[9])) {
+                                handler.handle(toFile(columns));
+                            }
+                        }
+                    }
+                }
+            });
+        });
+    }
+
+    private static File toFile(String[] columns) {
+        File file = new File()
+                .setId(columns[2])
+                .setMimeType(columns[4])
+                .setName(unescape(columns[11]));
+        if (!NONE.equals(columns[3])) {
+            file.setParents(Collections.singletonList(columns[3]));
+        }
+        if (!NONE.equals(columns[5])) {
+            file.setSize(Long.parseLong(columns[5]));
+        }
+        if (!NONE.equals(columns[6])) {
+            file.setModifiedTime(DateTime.parseRfc3339(columns[6]));
+        }
+        if (!NONE.equals(columns[7])) {
+            file.setMd5Checksum(columns[7]);
+        }
+        return file;
+    }
+
+    private static BufferedReader open(java.io.File planFile) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(planFile), StandardCharsets.UTF_8));
+    }
+
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? null : path.substring(0, slash);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,321 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.services.drive.model.File;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.commons.lang3.StringUtils.split;
+
+/**
+ * Splits the files of one gdrive between several worker processes that share a coordination directory.
+ * <p>
+ * File ids are hashed into a fixed number of shards. A worker claims shards by creating their lease file, keeps
+ * renewing it while it works on them, records every transferred file id in the shard manifest and marks the shard
+ * done when all its files were transferred. Leases of crashed workers expire and their shards are reclaimed by the
+ * others, who skip what the manifest already lists. A shard with failed transfers is released instead, left to the
+ * other workers and to the next run. Workers' clocks are expected to be roughly in sync.
+ * <p>
+ * The state is kept per run: workers join the latest run until all its shards are done, then the next one starts
+ * from scratch and the runs before the previous one are deleted.
+ * <pre>
+ * coordinationDir/gdrive-name/run-3/shard-7.lease     worker id and lease expiry
+ * coordinationDir/gdrive-name/run-3/shard-7.manifest  transferred file ids
+ * coordinationDir/gdrive-name/run-3/shard-7.done
+ * </pre>
+ */
+public class ShardCoordinator {
+
+    private static Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    private static final String RUN_PREFIX = "run-";
+
+    private final Path dir;
+    private final int shards;
+    private final int shardsPerClaim;
+    private final long leaseMillis;
+    private final String workerId;
+    private final Set<Integer> held = ConcurrentHashMap.newKeySet();
+    private final Set<String> completed = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> failed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService renewer;
+
+    public ShardCoordinator(GDriveConfig settings) throws IOException {
+        shards = settings.getShards();
+        shardsPerClaim = settings.getShardsPerClaim();
+        leaseMillis = 1000 * settings.getLeaseSeconds();
+        workerId = settings.getWorkerId();
+        dir = joinRun(Paths.get(settings.getCoordinationDir(), settings.getName()));
+
+        renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        renewer.scheduleWithFixedDelay(this::renew, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+
+        log.info("Worker [{}] coordinating {} shards in {}", workerId, shards, dir);
+    }
+
+    public int shardOf(String fileId) {
+        // String.hashCode() is specified, so every worker computes the same shard
+        return (fileId.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    /**
+     * Claims up to {@code shardsPerClaim} shards that are neither done nor leased, starting at a random shard so that
+     * workers don't all race for the same ones.
+     *
+     * @return the claimed shards, empty if there are none left to claim right now
+     */
+    public Set<Integer> claim() throws IOException {
+        Set<Integer> claimed = new LinkedHashSet<>();
+        int offset = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards && claimed.size() < shardsPerClaim; i++) {
+            int shard = (offset + i) % shards;
+            if (!failed.contains(shard) && !Files.exists(done(shard)) && tryLease(shard)) {
+                loadManifest(shard);
+                held.add(shard);
+                claimed.add(shard);
+            }
+        }
+
+        return claimed;
+    }
+
+    public boolean isCompleted(String fileId) {
+        return completed.contains(fileId);
+    }
+
+    /**
+     * Records a transferred file in the manifest of its shard.
+     */
+    public synchronized void complete(File file) {
+        int shard = shardOf(file.getId());
+        try {
+            Files.write(manifest(shard), (file.getId() + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            completed.add(file.getId());
+        } catch (IOException e) {
+            log.error("Could not record [" + file.getName() + "] in the manifest of shard " + shard, e);
+        }
+    }
+
+    /**
+     * Records a failed transfer, its shard won't be marked done by this worker.
+     */
+    public void fail(File file) {
+        failed.add(shardOf(file.getId()));
+    }
+
+    /**
+     * Marks shards done, unless some of their transfers failed, and gives up their leases.
+     */
+    public void finish(Set<Integer> shards) throws IOException {
+        for (int shard : shards) {
+            if (failed.contains(shard)) {
+                log.warn("Shard {} has failed transfers, leaving it to other workers and the next run", shard);
+            } else if (held.contains(shard)) {
+                Files.write(done(shard), workerId.getBytes(StandardCharsets.UTF_8));
+            } else {
+                log.warn("Lease of shard {} was lost, leaving it to its new owner", shard);
+            }
+        }
+        release(shards);
+    }
+
+    /**
+     * Gives up the leases of unfinished shards so that other workers can take them over straight away.
+     */
+    public void release(Set<Integer> shards) throws IOException {
+        for (int shard : shards) {
+            if (held.remove(shard)) {
+                Files.deleteIfExists(lease(shard));
+            }
+        }
+    }
+
+    /**
+     * Whether every shard is done, apart from those this worker failed to finish.
+     */
+    public boolean isFinished() {
+        for (int shard = 0; shard < shards; shard++) {
+            if (!failed.contains(shard) && !Files.exists(done(shard))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits long enough for the lease of a crashed worker to expire.
+     */
+    public void awaitLeases() throws InterruptedException {
+        Thread.sleep(leaseMillis / 2);
+    }
+
+    public void close() throws IOException {
+        renewer.shutdownNow();
+        release(new LinkedHashSet<>(held));
+    }
+
+    /**
+     * @return the directory of the latest run, or of a new one if all shards of the latest are done
+     */
+    private Path joinRun(Path gdriveDir) throws IOException {
+        Files.createDirectories(gdriveDir);
+
+        int run = 0;
+        try (DirectoryStream<Path> runs = Files.newDirectoryStream(gdriveDir, RUN_PREFIX + "*")) {
+            for (Path path : runs) {
+                run = Math.max(run, NumberUtils.toInt(path.getFileName().toString().substring(RUN_PREFIX.length())));
+            }
+        }
+
+        if (run == 0 || isDone(gdriveDir.resolve(RUN_PREFIX + run))) {
+            run++;
+            // Workers still finishing the previous run keep its directory
+            for (int old = run - 2; old > 0 && Files.exists(gdriveDir.resolve(RUN_PREFIX + old)); old--) {
+                FileUtils.deleteDirectory(gdriveDir.resolve(RUN_PREFIX + old).toFile());
+            }
+        }
+
+        Path runDir = gdriveDir.resolve(RUN_PREFIX + run);
+        Files.createDirectories(runDir);
+        log.info("Joining run {} of [{}]", run, gdriveDir.getFileName());
+        return runDir;
+    }
+
+    private boolean isDone(Path runDir) {
+        for (int shard = 0; shard < shards; shard++) {
+            if (!Files.exists(runDir.resolve("shard-" + shard + ".done"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean tryLease(int shard) throws IOException {
+        Path lease = lease(shard);
+        try {
+            Files.createFile(lease);
+            writeLease(shard);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            // Leased by someone, take it over if the lease expired
+        }
+
+        if (!isExpired(lease)) {
+            return false;
+        }
+
+        // Only one worker gets to move the expired lease away
+        Path expired = dir.resolve(lease.getFileName() + "." + workerId + ".expired");
+        try {
+            Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return false;
+        }
+
+        if (!isExpired(expired)) {
+            // Renewed between the check and the move, give it back
+            try {
+                Files.move(expired, lease, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(expired);
+            }
+            return false;
+        }
+        log.info("Taking over expired lease of shard {}: {}", shard, readLease(expired));
+        Files.deleteIfExists(expired);
+
+        try {
+            Files.createFile(lease);
+            writeLease(shard);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    private void renew() {
+        for (int shard : held) {
+            try {
+                String[] lease = split(readLease(lease(shard)), ' ');
+                if (lease.length > 0 && !workerId.equals(lease[0])) {
+                    log.warn("Lease of shard {} was taken over by {}", shard, lease[0]);
+                    held.remove(shard);
+                    continue;
+                }
+                writeLease(shard);
+            } catch (IOException e) {
+                log.error("Could not renew lease of shard " + shard, e);
+            }
+        }
+    }
+
+    private void writeLease(int shard) throws IOException {
+        Path tmp = dir.resolve(lease(shard).getFileName() + "." + workerId + ".tmp");
+        String content = workerId + " " + (System.currentTimeMillis() + leaseMillis);
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, lease(shard), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean isExpired(Path lease) throws IOException {
+        String[] content;
+        try {
+            content = split(readLease(lease), ' ');
+        } catch (NoSuchFileException e) {
+            return false; // Released in the meantime, claimed on the next round
+        }
+
+        // An empty lease is still being written by its new owner
+        return content.length == 2 && NumberUtils.toLong(content[1], Long.MAX_VALUE) < System.currentTimeMillis();
+    }
+
+    private String readLease(Path lease) throws IOException {
+        return new String(Files.readAllBytes(lease), StandardCharsets.UTF_8).trim();
+    }
+
+    private void loadManifest(int shard) throws IOException {
+        Path manifest = manifest(shard);
+        if (Files.exists(manifest)) {
+            List<String> ids = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            completed.addAll(ids);
+            completed.remove("");
+            log.info("Shard {}: {} files already transferred", shard, ids.size());
+        }
+    }
+
+    private Path lease(int shard) {
+        return dir.resolve("shard-" + shard + ".lease");
+    }
+
+    private Path manifest(int shard) {
+        return dir.resolve("shard-" + shard + ".manifest");
+    }
+
+    private Path done(int shard) {
+        return dir.resolve("shard-" + shard + ".done");
+    }
+}
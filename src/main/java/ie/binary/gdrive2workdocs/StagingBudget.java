@@ -0,0 +1,173 @@
+package ie.binary.gdrive2workdocs;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static humanize.Humanize.binaryPrefix;
+
+/**
+ * Limits the number of bytes staged in the local data store.
+ * <p>
+ * Downloads reserve their expected size up front and block while the budget is exhausted. Files that are uploaded and
+ * cleaned up give their bytes back, files that stay on disk (download only, no cleanup or failed uploads) are
+ * retained in LRU order and, when eviction is enabled, deleted oldest first to make room.
+ *
+ * @see TransferPipeline locks rather than monitors
+ */
+public class StagingBudget {
+
+    private static Logger log = LoggerFactory.getLogger(StagingBudget.class);
+
+    private final long capacity;
+    private final boolean evict;
+    private final LinkedHashMap<File, Long> retained = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long used;
+    private long inFlight;
+    private boolean seeded;
+
+    /**
+     * @param capacity maximum number of staged bytes, 0 or less for no limit
+     * @param evict    delete the least recently used retained files when the budget is exhausted
+     */
+    public StagingBudget(long capacity, boolean evict) {
+        this.capacity = capacity > 0 ? capacity : Long.MAX_VALUE;
+        this.evict = evict;
+    }
+
+    /**
+     * Accounts for the files already present in a local mirror, oldest first. Only the first call does, the budget
+     * keeps track of them from then on.
+     */
+    public void seed(File dir) {
+        lock.lock();
+        try {
+            if (seeded) {
+                return;
+            }
+            seeded = true;
+        } finally {
+            lock.unlock();
+        }
+        if (!dir.isDirectory()) {
+            return;
+        }
+
+        List<File> files = new ArrayList<>(FileUtils.listFiles(dir, null, true));
+        files.sort(Comparator.comparingLong(File::lastModified));
+        lock.lock();
+        try {
+            for (File file : files) {
+                addRetained(file, file.length());
+            }
+
+            log.info("Staging budget: {} already staged in {}", binaryPrefix(used), dir);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until {@code bytes} fit in the budget. A single reservation larger than the whole budget is let through
+     * once nothing else is staged.
+     */
+    public void reserve(long bytes) throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (used > 0 && used + bytes > capacity) {
+                if (evict && !retained.isEmpty()) {
+                    evictEldest();
+                } else if (inFlight > 0) {
+                    changed.await();
+                } else {
+                    throw new IOException("Staging budget of " + binaryPrefix(capacity) + " exhausted by "
+                            + binaryPrefix(used) + " of retained files");
+                }
+            }
+
+            used += bytes;
+            inFlight += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces a reservation by the number of bytes actually staged.
+     */
+    public void adjust(long reserved, long actual) {
+        lock.lock();
+        try {
+            used += actual - reserved;
+            inFlight += actual - reserved;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back the bytes of a staged file that has been deleted.
+     */
+    public void release(long bytes) {
+        lock.lock();
+        try {
+            used -= bytes;
+            inFlight -= bytes;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the bytes of a staged file that stays on disk from in flight to the LRU list of retained files.
+     */
+    public void retain(File file, long bytes) {
+        lock.lock();
+        try {
+            inFlight -= bytes;
+            // Already counted in used by its reservation
+            used -= bytes;
+            addRetained(file, bytes);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addRetained(File file, long bytes) {
+        Long previous = retained.put(file, bytes);
+        if (previous != null) {
+            used -= previous; // Overwritten by a later download
+        }
+        used += bytes;
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<File, Long>> iterator = retained.entrySet().iterator();
+        Map.Entry<File, Long> eldest = iterator.next();
+        iterator.remove();
+
+        File file = eldest.getKey();
+        if (file.delete() || !file.exists()) {
+            log.info("Evicted staged file [{}] ({})", file, binaryPrefix(eldest.getValue()));
+        } else {
+            log.warn("Could not evict staged file: " + file);
+        }
+        used -= eldest.getValue();
+    }
+}
@@ -0,0 +1,148 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Selects the files of a gdrive to transfer, see the filter settings of a gdrive.
+ * <p>
+ * What Drive can filter on, mime types, modified time, trashed and ownership, goes into the query of the listing, see
+ * {@link #toQuery()}, so that the rest of the drive isn't listed at all. Paths and sizes can't be queried and are
+ * checked on every listed file, as is everything for changes, whose feed takes no query.
+ * <p>
+ * Paths are Drive folder paths like {@code dontDeleteDir}, e.g. {@code /Projects/2023}, and match the folder and
+ * everything below it.
+ */
+public final class SyncFilter {
+
+    private final List<String> includePaths;
+    private final List<String> excludePaths;
+    private final List<String> includeMimeTypes;
+    private final List<String> excludeMimeTypes;
+    private final long minSize;
+    private final long maxSize;
+    private final Date modifiedAfter;
+    private final Date modifiedBefore;
+    private final Boolean trashed;
+    private final Boolean ownedByMe;
+
+    SyncFilter(Config.Section section) {
+        includePaths = section.getList("includePaths");
+        excludePaths = section.getList("excludePaths");
+        includeMimeTypes = section.getList("includeMimeTypes");
+        excludeMimeTypes = section.getList("excludeMimeTypes");
+        minSize = section.getLong("minSize", 0);
+        maxSize = section.getLong("maxSize", 0);
+        if (maxSize > 0 && maxSize < minSize) {
+            throw section.invalid("maxSize", "less than minSize: " + maxSize);
+        }
+        modifiedAfter = section.getDate("modifiedAfter");
+        modifiedBefore = section.getDate("modifiedBefore");
+        trashed = section.getOptionalBoolean("trashed");
+        ownedByMe = section.getOptionalBoolean("ownedByMe");
+    }
+
+    /**
+     * @return the Drive query selecting the files this filter can select server side, null if it can't
+     */
+    public String toQuery() {
+        List<String> clauses = new ArrayList<>();
+        if (!includeMimeTypes.isEmpty()) {
+            List<String> mimeTypes = new ArrayList<>();
+            for (String mimeType : includeMimeTypes) {
+                mimeTypes.add("mimeType = " + quote(mimeType));
+            }
+            clauses.add("(" + String.join(" or ", mimeTypes) + ")");
+        }
+        for (String mimeType : excludeMimeTypes) {
+            clauses.add("mimeType != " + quote(mimeType));
+        }
+        if (modifiedAfter != null) {
+            clauses.add("modifiedTime >= " + quote(new DateTime(modifiedAfter).toStringRfc3339()));
+        }
+        if (modifiedBefore != null) {
+            clauses.add("modifiedTime < " + quote(new DateTime(modifiedBefore).toStringRfc3339()));
+        }
+        if (trashed != null) {
+            clauses.add("trashed = " + trashed);
+        }
+        if (ownedByMe != null) {
+            clauses.add(ownedByMe ? "'me' in owners" : "not 'me' in owners");
+        }
+        return clauses.isEmpty() ? null : String.join(" and ", clauses);
+    }
+
+    /**
+     * @param parentPath Drive path of the file's folder
+     * @return whether the file is selected. Exports have no size, size limits don't apply to them
+     */
+    public boolean matches(File file, String parentPath) {
+        String path = parentPath.endsWith("/") ? parentPath + file.getName() : parentPath + "/" + file.getName();
+        if (!includePaths.isEmpty() && !isUnderAny(path, includePaths) || isUnderAny(path, excludePaths)) {
+            return false;
+        }
+
+        if (!includeMimeTypes.isEmpty() && !includeMimeTypes.contains(file.getMimeType())
+                || excludeMimeTypes.contains(file.getMimeType())) {
+            return false;
+        }
+
+        Long size = file.getSize();
+        if (size != null && (size < minSize || maxSize > 0 && size > maxSize)) {
+            return false;
+        }
+
+        long modified = file.getModifiedTime() == null ? -1 : file.getModifiedTime().getValue();
+        if (modified >= 0 && (modifiedAfter != null && modified < modifiedAfter.getTime()
+                || modifiedBefore != null && modified >= modifiedBefore.getTime())) {
+            return false;
+        }
+
+        return (trashed == null || file.getTrashed() == null || trashed.equals(file.getTrashed()))
+                && (ownedByMe == null || file.getOwnedByMe() == null || ownedByMe.equals(file.getOwnedByMe()));
+    }
+
+    /**
+     * @param path Drive path of a folder
+     * @return whether files below the folder may be selected
+     */
+    public boolean includesFolder(String path) {
+        if (isUnderAny(path, excludePaths)) {
+            return false;
+        }
+        if (includePaths.isEmpty()) {
+            return true;
+        }
+        for (String includePath : includePaths) {
+            // Ancestors of included folders are needed too
+            if (isUnder(path, includePath) || isUnder(includePath, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnderAny(String path, List<String> folders) {
+        for (String folder : folders) {
+            if (isUnder(path, folder)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isUnder(String path, String folder) {
+        if (folder.endsWith("/")) {
+            folder = folder.substring(0, folder.length() - 1);
+        }
+        return path.equals(folder) || path.startsWith(folder + "/");
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+    }
+}
@@ -0,0 +1,82 @@
+package ie.binary.gdrive2workdocs;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Throughput measured by past transfer runs, per gdrive, kept in {@code throughput.properties} in the data store.
+ * New measurements are averaged with the previous ones so a single odd run doesn't skew the estimates.
+ */
+public class Throughput {
+
+    private static Logger log = LoggerFactory.getLogger(Throughput.class);
+
+    private static final double WEIGHT = 0.5;
+
+    /**
+     * Runs shorter than this say more about startup than about throughput.
+     */
+    private static final long MIN_MILLIS = 10000;
+
+    public static synchronized void record(Config config, String name, long bytes, long files, long millis) {
+        if (millis < MIN_MILLIS || files == 0) {
+            return;
+        }
+
+        Properties properties = load(config);
+        update(properties, name + ".bytesPerSecond", 1000.0 * bytes / millis);
+        update(properties, name + ".filesPerSecond", 1000.0 * files / millis);
+
+        try (OutputStream out = new FileOutputStream(getFile(config))) {
+            properties.store(out, "Measured by gdrive2workdocs");
+        } catch (IOException e) {
+            log.warn("Could not save throughput: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return bytes per second, 0 if never measured
+     */
+    public static synchronized double getBytesPerSecond(Config config, String name) {
+        return NumberUtils.toDouble(load(config).getProperty(name + ".bytesPerSecond"));
+    }
+
+    /**
+     * @return files per second, 0 if never measured
+     */
+    public static synchronized double getFilesPerSecond(Config config, String name) {
+        return NumberUtils.toDouble(load(config).getProperty(name + ".filesPerSecond"));
+    }
+
+    private static void update(Properties properties, String key, double measured) {
+        double previous = NumberUtils.toDouble(properties.getProperty(key));
+        double value = previous > 0 ? WEIGHT * measured + (1 - WEIGHT) * previous : measured;
+        properties.setProperty(key, String.valueOf(value));
+    }
+
+    private static Properties load(Config config) {
+        Properties properties = new Properties();
+        File file = getFile(config);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                log.warn("Could not load throughput: " + e.getMessage());
+            }
+        }
+        return properties;
+    }
+
+    private static File getFile(Config config) {
+        return new File(config.getDataStoreDir(), "throughput.properties");
+    }
+}
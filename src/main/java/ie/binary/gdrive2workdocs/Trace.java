@@ -0,0 +1,81 @@
+package ie.binary.gdrive2workdocs;
+
+/**
+ * Times a phase of a transfer as a Java Flight Recorder event, see {@code TransferEvents}, committed when closed:
+ * <pre>
+ * try (Trace trace = Trace.start(Trace.Phase.PUT, documentId, fileName, size, contentType)) {
+ *     ...
+ *     trace.setOutcome(Trace.OK);
+ * }
+ * </pre>
+ * A trace closed without an outcome failed. Without Flight Recorder in the JVM, or with the event disabled, traces
+ * do nothing.
+ */
+public class Trace implements AutoCloseable {
+
+    public static final String OK = "ok";
+    public static final String SKIPPED = "skipped";
+    public static final String FAILED = "failed";
+
+    static final Trace NONE = new Trace();
+
+    private static final Recorder RECORDER = loadRecorder();
+
+    public enum Phase {
+        LISTING, QUEUE, DOWNLOAD, EXPORT, CONTENT_TYPE, FOLDER, PUT, UPDATE_VERSION
+    }
+
+    Trace() {
+    }
+
+    /**
+     * @param fileId   id of the Drive file or WorkDocs document, null if there is none
+     * @param size     bytes, -1 if unknown
+     * @param mimeType null if unknown
+     */
+    public static Trace start(Phase phase, String fileId, String name, long size, String mimeType) {
+        return RECORDER == null ? NONE : RECORDER.start(phase, fileId, name, size, mimeType);
+    }
+
+    /**
+     * Looked up at runtime so the build keeps targeting Java 8, whose JVMs mostly have no Flight Recorder API.
+     *
+     * @return null without Flight Recorder
+     */
+    private static Recorder loadRecorder() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Trace.class.getClassLoader());
+            return (Recorder) Class.forName("ie.binary.gdrive2workdocs.TransferEvents")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public Trace setFileId(String fileId) {
+        return this;
+    }
+
+    public Trace setSize(long size) {
+        return this;
+    }
+
+    public Trace setMimeType(String mimeType) {
+        return this;
+    }
+
+    public Trace setOutcome(String outcome) {
+        return this;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Starts traces that record something, implemented by {@code TransferEvents}.
+     */
+    interface Recorder {
+        Trace start(Phase phase, String fileId, String name, long size, String mimeType);
+    }
+}
@@ -0,0 +1,500 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.services.drive.model.File;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static ie.binary.gdrive2workdocs.GDriveHelper.FOLDER_MIME_TYPE;
+
+/**
+ * Downloads from GDrive and uploads to WorkDocs on separate worker pools, with the staged bytes kept within a
+ * {@link StagingBudget}.
+ * <p>
+ * The {@code threads} engine (default) runs downloads, exports and uploads on fixed pools of their own, so that
+ * exports waiting for their limit don't hold up downloads. The {@code virtual} engine runs every transfer on its own virtual thread, up to
+ * {@code maxInFlight} at a time, which suits many small files whose time is spent waiting on the network. Both keep
+ * the blocking {@link GDriveHelper} and {@link WorkDocsHelper} calls as they are. What they block on is a lock rather
+ * than a monitor, a virtual thread blocked in a monitor stays pinned to its carrier thread before Java 24.
+ * <p>
+ * Downloads, exports and uploads in flight are each bounded by a {@link ConcurrencyLimit} of the gdrive, which
+ * with {@code adaptiveConcurrency} adapts to the latency and throttling of Drive and WorkDocs.
+ * <p>
+ * With {@code deduplicate}, files with the same checksum and size as one being transferred aren't downloaded again:
+ * they are uploaded from its staged copy. The listing is ordered by size, so the staged copy is kept until the listing
+ * has moved past its size and cleaned up after the last copy.
+ */
+public class TransferPipeline {
+
+    private static Logger log = LoggerFactory.getLogger(TransferPipeline.class);
+
+    private final GDriveHelper source;
+    private final WorkDocsHelper destination;
+    private final boolean cleanup;
+    private final boolean deduplicate;
+    private final long exportSizeEstimate;
+    private final StagingBudget budget;
+    private final ExecutorService downloadPool;
+    private final ExecutorService exportPool;
+    private final ExecutorService uploadPool;
+    private final Semaphore pending;
+    private final Config config;
+    private final String name;
+    private final long started = System.currentTimeMillis();
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong transferredFiles = new AtomicLong();
+    private final Map<String, SharedContent> contents = new ConcurrentHashMap<>();
+    private volatile boolean listed;
+    private Consumer<File> listener = file -> {
+    };
+    private Consumer<File> failureListener = file -> {
+    };
+
+    /**
+     * @param destination null when only downloading
+     */
+    public TransferPipeline(GDriveHelper source, WorkDocsHelper destination) {
+        this.source = source;
+        this.destination = destination;
+        config = source.getConfig();
+        GDriveConfig settings = source.getSettings();
+        name = settings.getName();
+
+        cleanup = settings.isCleanup();
+        // Download only mirrors need every file at its own path
+        deduplicate = settings.isDeduplicate() && destination != null;
+        exportSizeEstimate = settings.getExportSizeEstimate();
+
+        ExecutorService downloadPool = null;
+        ExecutorService exportPool = null;
+        ExecutorService uploadPool = null;
+        if (settings.isVirtualEngine()) {
+            downloadPool = newVirtualThreadExecutor();
+            exportPool = newVirtualThreadExecutor();
+            uploadPool = newVirtualThreadExecutor();
+            if (downloadPool == null) {
+                log.warn("Virtual threads need Java 21 or later, falling back to the threads engine");
+            }
+        }
+
+        if (downloadPool == null || exportPool == null || uploadPool == null) {
+            // Sized to the most the concurrency limits allow, the limits decide how many are busy. Exports have a
+            // pool of their own so that those waiting for the export limit don't hold up downloads
+            downloadPool = Executors.newFixedThreadPool(settings.getDownloadConcurrency());
+            exportPool = Executors.newFixedThreadPool(settings.getDownloadConcurrency());
+            uploadPool = Executors.newFixedThreadPool(settings.getUploadConcurrency());
+
+            // Keeps the listing from queueing more work than the workers can take
+            pending = new Semaphore(2 * (2 * settings.getDownloadConcurrency() + settings.getUploadConcurrency()));
+        } else {
+            // One virtual thread per transfer, only the number of transfers in flight is limited
+            pending = new Semaphore(settings.getMaxInFlight());
+        }
+        this.downloadPool = downloadPool;
+        this.exportPool = exportPool;
+        this.uploadPool = uploadPool;
+
+        budget = source.getStagingBudget();
+    }
+
+    /**
+     * Looked up at runtime so the build keeps targeting Java 8.
+     *
+     * @return null when the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Called from the worker threads for every file that was fully transferred.
+     */
+    public void setListener(Consumer<File> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Called from the worker threads for every file whose transfer failed, or only partly succeeded.
+     */
+    public void setFailureListener(Consumer<File> failureListener) {
+        this.failureListener = failureListener;
+    }
+
+    public void submit(File driveFile) throws InterruptedException {
+        if (FOLDER_MIME_TYPE.equals(driveFile.getMimeType())) {
+            return;
+        }
+
+        if (isUpToDate(driveFile)) {
+            log.info("Skipping [{}], identical documents already exist", driveFile.getName());
+            if (cleanup) {
+                try {
+                    source.deleteFile(driveFile);
+                } catch (IOException e) {
+                    log.error("Could not delete [" + driveFile.getName() + "]: " + e.getMessage(), e);
+                }
+            }
+            listener.accept(driveFile);
+            return;
+        }
+
+        // No copies of smaller contents are coming anymore
+        releaseIdle(driveFile.getSize() == null ? 0 : driveFile.getSize());
+        if (!pending.tryAcquire()) {
+            // Staged contents waiting for copies could hold up the transfers the listing waits for
+            releaseIdle(Long.MAX_VALUE);
+            pending.acquire();
+        }
+        String key = getContentKey(driveFile);
+        SharedContent content = key == null ? null : share(key, driveFile);
+
+        CompletableFuture<Boolean> transfer;
+        if (content == null || content.first == driveFile) {
+            ExecutorService pool = GDriveHelper.getExportMimeTypes(driveFile.getMimeType()).isEmpty() ? downloadPool : exportPool;
+            CompletableFuture<List<java.io.File>> staged = CompletableFuture.supplyAsync(() -> download(driveFile), pool);
+            if (content != null) {
+                staged.whenComplete((files, t) -> {
+                    if (t != null) {
+                        content.staged.completeExceptionally(t);
+                    } else {
+                        content.staged.complete(files);
+                    }
+                });
+            }
+            transfer = staged.thenApplyAsync(files -> upload(driveFile, files, content), uploadPool);
+        } else {
+            log.info("[{}] has the same content as [{}], uploading its staged copy", driveFile.getName(), content.first.getName());
+            transfer = content.staged.thenApplyAsync(files -> upload(driveFile, files, content), uploadPool);
+        }
+
+        transfer.whenComplete((transferred, t) -> {
+            if (content != null) {
+                unshare(key, content);
+            }
+            pending.release();
+            if (t != null) {
+                Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                log.error("Transfer of [" + driveFile.getName() + "] failed: " + cause.getMessage(), cause);
+            }
+
+            if (t == null && transferred) {
+                listener.accept(driveFile);
+            } else {
+                failureListener.accept(driveFile);
+            }
+        });
+    }
+
+    /**
+     * Whether every document a file would be uploaded as already exists with its size and modified time, looked up
+     * before downloading so that re-runs don't download what they would skip. Exports have no size until exported,
+     * their modified time has to match. Other existing documents get a new version after the download.
+     */
+    private boolean isUpToDate(File driveFile) {
+        if (destination == null) {
+            return false;
+        }
+
+        String folderPath = source.getTargetFolderPath(driveFile);
+        long size = GDriveHelper.getExportMimeTypes(driveFile.getMimeType()).isEmpty() && driveFile.getSize() != null
+                ? driveFile.getSize() : -1;
+        Date modified = driveFile.getModifiedTime() == null ? null : new Date(driveFile.getModifiedTime().getValue());
+        List<String> names = source.getTargetNames(driveFile);
+        for (String name : names) {
+            if (destination.planUpload(folderPath, name, size, modified) != WorkDocsHelper.UploadAction.SKIP) {
+                return false;
+            }
+        }
+        return !names.isEmpty();
+    }
+
+    /**
+     * @return checksum and size of a file that may share its staged copy, null if it can't
+     */
+    private String getContentKey(File driveFile) {
+        if (!deduplicate || driveFile.getMd5Checksum() == null || driveFile.getSize() == null || driveFile.getSize() == 0
+                || !GDriveHelper.getExportMimeTypes(driveFile.getMimeType()).isEmpty()) {
+            return null;
+        }
+        return driveFile.getMd5Checksum() + "/" + driveFile.getSize();
+    }
+
+    /**
+     * @return the content being transferred with the same key, a new one with {@code driveFile} first if there is none
+     */
+    private SharedContent share(String key, File driveFile) {
+        return contents.compute(key, (k, content) -> {
+            if (content == null) {
+                return new SharedContent(driveFile);
+            }
+            content.references++;
+            return content;
+        });
+    }
+
+    /**
+     * Drops a reference to a shared content. Without references its staged copy is kept for copies listed later, until
+     * the listing has moved past its size, unless the download failed or the listing is done.
+     */
+    private void unshare(String key, SharedContent content) {
+        contents.computeIfPresent(key, (k, current) -> {
+            if (current == content) {
+                current.references--;
+            }
+            return current;
+        });
+        if (listed || content.staged.isCompletedExceptionally()) {
+            release(key, content);
+        }
+    }
+
+    /**
+     * Releases the contents without references that are smaller than {@code size}.
+     */
+    private void releaseIdle(long size) {
+        for (Map.Entry<String, SharedContent> entry : contents.entrySet()) {
+            SharedContent content = entry.getValue();
+            if (content.references == 0 && content.size < size) {
+                release(entry.getKey(), content);
+            }
+        }
+    }
+
+    /**
+     * Cleans up the staged copy of a content if it has no references anymore.
+     */
+    private void release(String key, SharedContent content) {
+        boolean[] idle = {false};
+        contents.computeIfPresent(key, (k, current) -> {
+            if (current != content || current.references > 0) {
+                return current;
+            }
+            idle[0] = true;
+            return null;
+        });
+        if (!idle[0] || content.staged.isCompletedExceptionally()) {
+            return; // A failed download gave its bytes back already
+        }
+
+        for (java.io.File file : content.staged.join()) {
+            long length = file.length();
+            if (cleanup && !content.failed && file.delete()) {
+                budget.release(length);
+            } else {
+                budget.retain(file, length);
+            }
+        }
+    }
+
+    /**
+     * Waits for the submitted transfers to finish and stops the workers.
+     */
+    public void await() throws InterruptedException {
+        listed = true;
+        releaseIdle(Long.MAX_VALUE);
+
+        downloadPool.shutdown();
+        exportPool.shutdown();
+        downloadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        exportPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        uploadPool.shutdown();
+        uploadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        Throughput.record(config, name, transferredBytes.get(), transferredFiles.get(), System.currentTimeMillis() - started);
+        if (source.getSettings().isAdaptiveConcurrency()) {
+            log.info("[{}] concurrency: {} downloads, {} exports, {} uploads", name,
+                    source.getDownloadLimit().getLimit(), source.getExportLimit().getLimit(), source.getUploadLimit().getLimit());
+        }
+    }
+
+    private List<java.io.File> download(File driveFile) {
+        Long size = driveFile.getSize();
+        long reserved = size != null ? size : exportSizeEstimate; // Google documents have no size until exported
+
+        ConcurrencyLimit limit = GDriveHelper.getExportMimeTypes(driveFile.getMimeType()).isEmpty()
+                ? source.getDownloadLimit() : source.getExportLimit();
+        try (Trace trace = Trace.start(Trace.Phase.QUEUE, driveFile.getId(), driveFile.getName(),
+                size != null ? size : -1, driveFile.getMimeType())) {
+            try {
+                budget.reserve(reserved);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+
+            try {
+                limit.acquire();
+            } catch (InterruptedException e) {
+                budget.release(reserved);
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+            trace.setOutcome(Trace.OK);
+        }
+
+        List<java.io.File> staged;
+        long start = System.nanoTime();
+        try {
+            staged = source.downloadFile(driveFile);
+        } catch (IOException | RuntimeException e) {
+            limit.failed(e);
+            budget.release(reserved);
+            throw new CompletionException(e);
+        }
+
+        long actual = 0;
+        for (java.io.File file : staged) {
+            actual += file.length();
+        }
+        limit.succeeded(System.nanoTime() - start, actual);
+        budget.adjust(reserved, actual);
+        transferredBytes.addAndGet(actual);
+        transferredFiles.incrementAndGet();
+
+        return staged;
+    }
+
+    /**
+     * Uploads a staged content under the folder and name of {@code driveFile}, leaving the staged copy to the last
+     * file sharing it.
+     *
+     * @return whether all of it was transferred
+     */
+    private boolean upload(File driveFile, List<java.io.File> staged, SharedContent content) {
+        if (content == null) {
+            return upload(driveFile, staged);
+        }
+
+        boolean uploaded = true;
+        for (java.io.File file : staged) {
+            Date modified = driveFile.getModifiedTime() == null ? new Date(file.lastModified())
+                    : new Date(driveFile.getModifiedTime().getValue());
+            try {
+                uploaded &= upload(file, () -> destination.uploadFile(file, source.getTargetFolderPath(driveFile),
+                        source.getTargetNames(driveFile).get(0), modified));
+            } catch (IOException | RuntimeException e) {
+                log.error(e.getMessage(), e);
+                uploaded = false;
+            }
+        }
+
+        if (!uploaded) {
+            content.failed = true;
+            return false;
+        }
+        if (cleanup && !staged.isEmpty()) {
+            try {
+                source.deleteFile(driveFile);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+        return true;
+    }
+
+    private boolean upload(File driveFile, List<java.io.File> staged) {
+        if (destination == null) {
+            for (java.io.File file : staged) {
+                budget.retain(file, file.length());
+            }
+            return true;
+        }
+
+        int uploadedFiles = 0;
+        int cleaned = 0;
+        for (java.io.File file : staged) {
+            long length = file.length();
+            boolean uploaded = false;
+            try {
+                uploaded = upload(file, () -> destination.uploadFile(file));
+            } catch (IOException | RuntimeException e) {
+                log.error(e.getMessage(), e);
+            }
+
+            if (uploaded) {
+                uploadedFiles++;
+            }
+            if (uploaded && cleanup && file.delete()) {
+                budget.release(length);
+                cleaned++;
+            } else {
+                budget.retain(file, length);
+            }
+        }
+
+        if (cleanup && !staged.isEmpty() && cleaned == staged.size()) {
+            try {
+                source.deleteFile(driveFile);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+
+        return uploadedFiles == staged.size();
+    }
+
+    private boolean upload(java.io.File file, Upload upload) throws IOException {
+        ConcurrencyLimit limit = source.getUploadLimit();
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+
+        long start = System.nanoTime();
+        try {
+            boolean uploaded = upload.run();
+            if (uploaded) {
+                limit.succeeded(System.nanoTime() - start, file.length());
+            } else {
+                limit.release();
+            }
+            return uploaded;
+        } catch (IOException | RuntimeException e) {
+            limit.failed(e);
+            throw e;
+        }
+    }
+
+    private interface Upload {
+        boolean run() throws IOException;
+    }
+
+    /**
+     * A content staged once for the files with the same checksum and size. References are counted under the lock of
+     * {@link #contents}' entry.
+     */
+    private static class SharedContent {
+
+        private final File first;
+        private final long size;
+        private final CompletableFuture<List<java.io.File>> staged = new CompletableFuture<>();
+        private volatile int references = 1;
+        private volatile boolean failed;
+
+        private SharedContent(File first) {
+            this.first = first;
+            size = first.getSize();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package ie.binary.gdrive2workdocs;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.workdocs.AmazonWorkDocs;
+import com.amazonaws.services.workdocs.AmazonWorkDocsClient;
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Process wide HTTP transports and clients, shared by every helper and worker thread.
+ * <p>
+ * The Drive transport and the signed URL uploads use {@link java.net.HttpURLConnection}, whose keep-alive pool is
+ * sized to the configured worker counts by the first config used. WorkDocs gets one {@link AmazonWorkDocs}
+ * client and one {@link UploadClient} per destination settings. The bandwidth limits for all gdrives together are
+ * kept here as well.
+ */
+public class Transports {
+
+    private static Logger log = LoggerFactory.getLogger(Transports.class);
+
+    private static final Map<WorkDocsConfig, AmazonWorkDocs> workDocsClients = new ConcurrentHashMap<>();
+    private static final Map<WorkDocsConfig, UploadClient> uploadClients = new ConcurrentHashMap<>();
+    private static HttpTransport googleTransport;
+    private static final BandwidthLimit downloadBandwidth = new BandwidthLimit("global download bandwidth", 0, null);
+    private static final BandwidthLimit uploadBandwidth = new BandwidthLimit("global upload bandwidth", 0, null);
+    private static boolean keepAliveConfigured;
+
+    /**
+     * Sizes the keep-alive pool to the first config used. It's read once by the JDK when the first connection is
+     * opened, so it has to be set before that.
+     */
+    private static synchronized void configureKeepAlive(Config config) {
+        if (keepAliveConfigured) {
+            return;
+        }
+        keepAliveConfigured = true;
+
+        if (isBlank(System.getProperty("http.maxConnections"))) {
+            int maxConnections = config.getMaxConnections();
+            if (maxConnections <= 0) {
+                int downloadWorkers = 0;
+                int uploadWorkers = 0;
+                for (GDriveConfig settings : config.getGdrives()) {
+                    downloadWorkers += settings.getDownloadConcurrency();
+                    uploadWorkers += settings.getUploadConcurrency();
+                }
+                maxConnections = Math.max(downloadWorkers, uploadWorkers) + 2;
+            }
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+            log.info("Keeping up to {} connections alive per host", maxConnections);
+        }
+    }
+
+    public static synchronized HttpTransport getGoogleTransport(Config config) throws GeneralSecurityException, IOException {
+        configureKeepAlive(config);
+        if (googleTransport == null) {
+            googleTransport = new NetHttpTransport.Builder()
+                    .trustCertificates(GoogleUtils.getCertificateTrustStore())
+                    .build();
+        }
+
+        return googleTransport;
+    }
+
+    /**
+     * Applies the configured timeouts and response compression on top of {@code initializer}.
+     */
+    public static HttpRequestInitializer configure(Config config, HttpRequestInitializer initializer) {
+        return request -> {
+            initializer.initialize(request);
+            request.setConnectTimeout(config.getConnectTimeout());
+            request.setReadTimeout(config.getReadTimeout());
+            if (!config.isGzip()) {
+                request.getHeaders().setAcceptEncoding(null);
+            }
+        };
+    }
+
+    /**
+     * Google only compresses responses for user agents that contain "gzip".
+     */
+    public static String userAgent(Config config, String applicationName) {
+        return config.isGzip() ? applicationName + " (gzip)" : applicationName;
+    }
+
+    public static AmazonWorkDocs getWorkDocsClient(Config config, WorkDocsConfig settings) {
+        configureKeepAlive(config);
+        return workDocsClients.computeIfAbsent(settings, s -> {
+            AWSCredentials longTermCredentials =
+                    new BasicAWSCredentials(s.getAccessKey(), s.getSecretKey());
+            AWSStaticCredentialsProvider staticCredentialProvider =
+                    new AWSStaticCredentialsProvider(longTermCredentials);
+
+            ClientConfiguration configuration = new ClientConfiguration()
+                    .withMaxConnections(destinationWorkers(config, s.getName()) + 2)
+                    .withConnectionTimeout(config.getConnectTimeout())
+                    .withSocketTimeout(config.getReadTimeout())
+                    .withTcpKeepAlive(true)
+                    .withGzip(config.isGzip());
+
+            return AmazonWorkDocsClient.builder().withCredentials(staticCredentialProvider)
+                    .withClientConfiguration(configuration)
+                    .withRegion(s.getRegion()).build();
+        });
+    }
+
+    /**
+     * Sets the process wide bandwidth limits to {@code config}'s. Called for every config loaded, helpers created
+     * with an earlier config are throttled by the latest limits too.
+     */
+    public static void configureBandwidth(Config config) {
+        downloadBandwidth.configure(config.getDownloadBytesPerSecond(), config.getBandwidthHours());
+        uploadBandwidth.configure(config.getUploadBytesPerSecond(), config.getBandwidthHours());
+    }
+
+    /**
+     * Process wide download limit, see {@link #configureBandwidth(Config)}.
+     */
+    public static BandwidthLimit getDownloadBandwidth() {
+        return downloadBandwidth;
+    }
+
+    /**
+     * Process wide upload limit, see {@link #configureBandwidth(Config)}.
+     */
+    public static BandwidthLimit getUploadBandwidth() {
+        return uploadBandwidth;
+    }
+
+    public static UploadClient getUploadClient(Config config, WorkDocsConfig settings) {
+        configureKeepAlive(config);
+        return uploadClients.computeIfAbsent(settings, s -> new UploadClient(config.getConnectTimeout(), config.getReadTimeout(),
+                config.getUploadBufferSize()));
+    }
+
+    /**
+     * Threads of the gdrives uploading to a destination that may use its client at the same time: uploads, or the
+     * folder creation and verify crawl, which share the client too.
+     */
+    private static int destinationWorkers(Config config, String destination) {
+        int workers = 0;
+        for (GDriveConfig settings : config.getGdrives()) {
+            if (destination.equals(settings.getDestination())) {
+                workers += Math.max(settings.getUploadConcurrency(),
+                        Math.max(settings.getFolderWorkers(), settings.getVerifyWorkers()));
+            }
+        }
+        return Math.max(1, workers);
+    }
+}
@@ -0,0 +1,148 @@
+package ie.binary.gdrive2workdocs;
+
+import com.amazonaws.util.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * PUTs content to the signed URLs handed out by WorkDocs.
+ * <p>
+ * Responses are always read to the end so that the connection goes back to the JDK keep-alive pool, see
+ * {@link Transports}.
+ * <p>
+ * Staged files are read from their {@link FileChannel} in large chunks into pooled buffers. The connection is TLS, so
+ * the bytes have to pass through user space to be encrypted anyway; {@code transferTo} or mapped files can't skip
+ * that. Large writes keep the number of reads, writes and TLS records per file down, and pooling the buffers means
+ * concurrent uploads don't allocate any.
+ */
+public class UploadClient {
+
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int bufferSize;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    public UploadClient(int connectTimeout, int readTimeout, int bufferSize) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param contentLength size of the content in bytes, or -1 if unknown, in which case the content is buffered in
+     *                      memory to compute it
+     * @param limits        bandwidth limits the upload is throttled by
+     */
+    public void put(String uploadUrl, String contentType, String encryption, long contentLength, InputStream inputStream,
+                    BandwidthLimit... limits) throws IOException {
+        HttpURLConnection connection = open(uploadUrl, contentType, encryption);
+
+        // Signed URLs don't accept chunked uploads, stream only when the length is known
+        if (contentLength >= 0) {
+            connection.setFixedLengthStreamingMode(contentLength);
+        }
+
+        OutputStream outputStream = BandwidthLimit.throttle(connection.getOutputStream(), limits);
+        try {
+            IOUtils.copy(inputStream, outputStream);
+        } finally {
+            outputStream.close();
+        }
+
+        readResponse(connection);
+    }
+
+    /**
+     * Uploads a staged file straight from its channel.
+     *
+     * @param limits bandwidth limits the upload is throttled by
+     */
+    public void put(String uploadUrl, String contentType, String encryption, File file, BandwidthLimit... limits) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            HttpURLConnection connection = open(uploadUrl, contentType, encryption);
+            connection.setFixedLengthStreamingMode(channel.size());
+
+            ByteBuffer buffer = takeBuffer();
+            try (OutputStream outputStream = BandwidthLimit.throttle(connection.getOutputStream(), limits)) {
+                while (channel.read(buffer) >= 0) {
+                    outputStream.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+                    buffer.clear();
+                }
+            } finally {
+                buffer.clear();
+                buffers.offer(buffer);
+            }
+
+            readResponse(connection);
+        }
+    }
+
+    /**
+     * A heap buffer, since {@link HttpURLConnection} only takes byte arrays. A direct buffer would cost one more copy.
+     */
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    private HttpURLConnection open(String uploadUrl, String contentType, String encryption) throws IOException {
+        URL url = new URL(uploadUrl);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("PUT");
+
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setRequestProperty("x-amz-server-side-encryption", encryption);
+        if ("kms".equals(encryption)) {
+            //  connection.setRequestProperty("x-amz-server-side-encryption-aws-kms-key-id", "no-key-defined");
+        }
+
+        return connection;
+    }
+
+    private void readResponse(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        InputStream response = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        String body = "";
+        if (response != null) {
+            try {
+                body = IOUtils.toString(response);
+            } finally {
+                response.close();
+            }
+        }
+
+        if (responseCode / 100 != 2) {
+            throw new UploadException(responseCode, body);
+        }
+    }
+
+    /**
+     * A signed URL upload the server didn't accept.
+     */
+    public static class UploadException extends IOException {
+
+        private final int statusCode;
+
+        public UploadException(int statusCode, String body) {
+            super("Upload to signed URL failed with HTTP " + statusCode + ": " + body);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
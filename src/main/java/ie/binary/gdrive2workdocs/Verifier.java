@@ -0,0 +1,234 @@
+package ie.binary.gdrive2workdocs;
+
+import com.amazonaws.services.workdocs.model.DocumentMetadata;
+import com.amazonaws.services.workdocs.model.DocumentVersionMetadata;
+import com.google.api.services.drive.model.File;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ie.binary.gdrive2workdocs.GDriveHelper.FOLDER_MIME_TYPE;
+
+/**
+ * Compares a gdrive with what was migrated to WorkDocs.
+ * <p>
+ * Both sides are crawled at the same time and joined on the destination path as they stream in, so only the items
+ * still waiting for their other side are kept in memory. Missing, extra and size or modified time mismatched items
+ * are written to a report in the data store. A sample of the matched items ({@code verifySampleRate}) can be
+ * downloaded from WorkDocs and checked against the Drive MD5 checksum. With sharedDrives each shared drive is compared
+ * with its own folder too.
+ */
+public class Verifier {
+
+    private static Logger log = LoggerFactory.getLogger(Verifier.class);
+
+    private final GDriveHelper source;
+    private final WorkDocsHelper destination;
+    private final int workers;
+    private final double sampleRate;
+    private final Map<String, Item> pending = new ConcurrentHashMap<>();
+    private final ExecutorService sampler;
+    private final AtomicLong matched = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private PrintWriter report;
+
+    public Verifier(GDriveHelper source) {
+        this.source = source;
+        this.destination = source.getDestination();
+        if (destination == null) {
+            throw new IllegalArgumentException("Nothing to verify, gdrive has no destination: " + source.getSettings().getName());
+        }
+
+        workers = source.getSettings().getVerifyWorkers();
+        sampleRate = source.getSettings().getVerifySampleRate();
+        sampler = Executors.newFixedThreadPool(workers);
+    }
+
+    public void verify() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        java.io.File reportFile = new java.io.File(source.getConfig().getDataStoreDir(),
+                "verify-" + source.getSettings().getName() + "-" + timestamp + ".tsv");
+
+        log.info("Verifying [{}] against WorkDocs ...", source.getSettings().getName());
+        try (PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8.name())) {
+            this.report = report;
+
+            CompletableFuture<Void> workDocs = CompletableFuture.runAsync(() -> {
+                try {
+                    source.forEachDrive(drive -> {
+                        // The shared drives are mirrored below My Drive's target folder, they're crawled on their own
+                        GDriveConfig settings = drive.getSettings();
+                        String sharedDrivesPath = drive.getTeamDriveId() == null && settings.isSharedDrives()
+                                ? settings.getTargetDirName() + "/" + settings.getSharedDrivesDirName() : null;
+                        try {
+                            destination.crawl(drive.getTargetRootPath(), path -> !path.equals(sharedDrivesPath), workers,
+                                    (folderPath, document) -> offerDocument(drive, folderPath, document));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted while crawling", e);
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+
+            try {
+                source.forEachDrive(drive -> {
+                    drive.buildFolderHierarchy();
+                    try {
+                        drive.listFiles(file -> offerFile(drive, file));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while listing", e);
+                    }
+                });
+                workDocs.join();
+
+                sampler.shutdown();
+                sampler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while verifying", e);
+            } finally {
+                sampler.shutdownNow();
+            }
+
+            long missing = 0;
+            long extra = 0;
+            for (Map.Entry<String, Item> entry : pending.entrySet()) {
+                Item item = entry.getValue();
+                if (item.fromDrive) {
+                    missing++;
+                    report("MISSING", entry.getKey(), item.id, "");
+                } else {
+                    extra++;
+                    report("EXTRA", entry.getKey(), item.id, "");
+                }
+            }
+
+            log.info("Verified [{}]: {} matched, {} mismatched, {} missing, {} extra. Report: {}",
+                    source.getSettings().getName(), matched.get(), mismatched.get(), missing, extra, reportFile);
+        }
+    }
+
+    private void offerFile(GDriveHelper drive, File file) {
+        if (FOLDER_MIME_TYPE.equals(file.getMimeType())) {
+            return;
+        }
+
+        String folderPath = drive.getTargetFolderPath(file);
+        boolean exported = !GDriveHelper.getExportMimeTypes(file.getMimeType()).isEmpty();
+        long modified = file.getModifiedTime() == null ? 0 : file.getModifiedTime().getValue();
+        for (String name : drive.getTargetNames(file)) {
+            // Exports have no size or checksum until they are exported
+            Item item = new Item(true, file.getId(), exported || file.getSize() == null ? -1 : file.getSize(),
+                    modified, exported ? null : file.getMd5Checksum(), null);
+            offer(folderPath + "/" + WorkDocsHelper.toDocumentName(name), item);
+        }
+    }
+
+    private void offerDocument(GDriveHelper drive, String folderPath, DocumentMetadata document) {
+        DocumentVersionMetadata version = document.getLatestVersionMetadata();
+        if (version == null || version.getName() == null) {
+            return;
+        }
+        // Folders the filter leaves out aren't transferred, what's in them isn't extra
+        if (!drive.getSettings().getFilter().includesFolder(drive.toDriveFolderPath(folderPath))) {
+            return;
+        }
+
+        Date modified = version.getContentModifiedTimestamp();
+        Item item = new Item(false, document.getId(), version.getSize() == null ? -1 : version.getSize(),
+                modified == null ? 0 : modified.getTime(), null, version.getId());
+        offer(folderPath.isEmpty() ? version.getName() : folderPath + "/" + version.getName(), item);
+    }
+
+    private void offer(String path, Item item) {
+        pending.compute(path, (key, other) -> {
+            if (other == null) {
+                return item;
+            }
+            if (other.fromDrive == item.fromDrive) {
+                report("DUPLICATE", key, item.id, "also " + other.id);
+                return other;
+            }
+
+            compare(key, item.fromDrive ? item : other, item.fromDrive ? other : item);
+            return null;
+        });
+    }
+
+    private void compare(String path, Item drive, Item workDocs) {
+        boolean ok = true;
+        if (drive.size >= 0 && drive.size != workDocs.size) {
+            report("SIZE", path, drive.id, drive.size + " != " + workDocs.size);
+            ok = false;
+        }
+        if (drive.modified / 1000 != workDocs.modified / 1000) {
+            report("MODIFIED", path, drive.id, new Date(drive.modified) + " != " + new Date(workDocs.modified));
+            ok = false;
+        }
+
+        if (!ok) {
+            mismatched.incrementAndGet();
+            return;
+        }
+
+        matched.incrementAndGet();
+        if (drive.md5 != null && sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            sampler.execute(() -> checkContent(path, drive, workDocs));
+        }
+    }
+
+    private void checkContent(String path, Item drive, Item workDocs) {
+        try (InputStream in = destination.openDocument(workDocs.id, workDocs.versionId)) {
+            String md5 = DigestUtils.md5Hex(in);
+            if (!drive.md5.equalsIgnoreCase(md5)) {
+                matched.decrementAndGet();
+                mismatched.incrementAndGet();
+                report("CONTENT", path, drive.id, drive.md5 + " != " + md5);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not check content of [" + path + "]: " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized void report(String type, String path, String id, String detail) {
+        report.println(type + "\t" + path + "\t" + id + "\t" + detail);
+    }
+
+    private static class Item {
+        private final boolean fromDrive;
+        private final String id;
+        private final long size;
+        private final long modified;
+        private final String md5;
+        private final String versionId;
+
+        private Item(boolean fromDrive, String id, long size, long modified, String md5, String versionId) {
+            this.fromDrive = fromDrive;
+            this.id = id;
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+            this.versionId = versionId;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ie.binary.gdrive2workdocs;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Settings of one WorkDocs destination, see the {@code workdocs} section of the settings file.
+ * <p>
+ * Two configs are equal when they were read from the same settings, so they can key shared clients.
+ */
+public final class WorkDocsConfig {
+
+    private final Map<String, Object> values;
+    private final String name;
+    private final String accessKey;
+    private final String secretKey;
+    private final String region;
+    private final String organisationId;
+    private final String rootFolderId;
+    private final String userQuery;
+    private final boolean documentIndex;
+
+    WorkDocsConfig(Map<String, Object> values) {
+        this.values = Collections.unmodifiableMap(new LinkedHashMap<>(values));
+
+        Config.Section section = new Config.Section("workdocs", values);
+        name = section.getRequiredString("name");
+        section = new Config.Section("workdocs [" + name + "]", values);
+
+        accessKey = section.getRequiredString("accessKey");
+        secretKey = section.getRequiredString("secretKey");
+        region = section.getString("region", "eu-west-1");
+        rootFolderId = section.getString("rootFolderId", "");
+        // Only needed to look users up and to subscribe, checked when used with a rootFolderId
+        organisationId = isBlank(rootFolderId) ? section.getRequiredString("organisationId")
+                : section.getString("organisationId", "");
+        userQuery = section.getString("userQuery", null);
+        documentIndex = section.getBoolean("documentIndex", false);
+
+        if (isBlank(rootFolderId) && isBlank(userQuery)) {
+            throw section.invalid("userQuery", "empty, and no rootFolderId either");
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAccessKey() {
+        return accessKey;
+    }
+
+    public String getSecretKey() {
+        return secretKey;
+    }
+
+    public String getRegion() {
+        return region;
+    }
+
+    public String getOrganisationId() {
+        return organisationId;
+    }
+
+    /**
+     * @return the folder to upload to, empty to use the root folder of the first user matching {@link #getUserQuery()}
+     */
+    public String getRootFolderId() {
+        return rootFolderId;
+    }
+
+    public String getUserQuery() {
+        return userQuery;
+    }
+
+    public boolean isDocumentIndex() {
+        return documentIndex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof WorkDocsConfig && values.equals(((WorkDocsConfig) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "workdocs [" + name + "]";
+    }
+}
@@ -1,10 +1,6 @@
 package ie.binary.gdrive2workdocs;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.workdocs.AmazonWorkDocs;
-import com.amazonaws.services.workdocs.AmazonWorkDocsClient;
 import com.amazonaws.services.workdocs.model.*;
 import com.google.api.client.util.Preconditions;
 import com.google.common.collect.BiMap;
@@ -14,56 +10,82 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
-import static ie.binary.gdrive2workdocs.DataUtils.getDataStoreDir;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 public class WorkDocsHelper {
 
     private static Logger log = LoggerFactory.getLogger(WorkDocsHelper.class);
-    private final Map<String, String> SETTINGS;
-    private final String accessKey;
-    private final String secretKey;
-    private final String region;
+    private final Config config;
+    private final WorkDocsConfig SETTINGS;
     private AmazonWorkDocs workDocs;
     private String rootFolderId;
     private BiMap<String, String> folderHierarchy;
     private String organisationId;
-
+    private DocumentIndex documentIndex;
+    private final BandwidthLimit uploadBandwidth;
+    /**
+     * Guards the lazily created state, see {@link TransferPipeline} for why it isn't a monitor.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Helper for a workdocs of the current {@link Config}.
+     */
     public WorkDocsHelper(String name) {
+        this(Config.get(), name);
+    }
 
-        SETTINGS = DataUtils.getWorkdocSettings(name);
-        if (SETTINGS == null || SETTINGS.isEmpty()) {
-            throw new java.lang.IllegalArgumentException("Workdoc settings don't exist for: " + name);
-        }
+    public WorkDocsHelper(Config config, String name) {
+        this(config, name, null);
+    }
 
-        accessKey = SETTINGS.get("accessKey");
-        secretKey = SETTINGS.get("secretKey");
-        region = SETTINGS.getOrDefault("region", "eu-west-1");
+    /**
+     * @param uploadBandwidth limit of the gdrive uploading, on top of the global one, null for none
+     */
+    public WorkDocsHelper(Config config, String name, BandwidthLimit uploadBandwidth) {
+        this.config = config;
+        this.uploadBandwidth = uploadBandwidth;
+        SETTINGS = config.getWorkdocs(name);
+
+        Preconditions.checkArgument(isNotBlank(SETTINGS.getRegion()), "Empty region");
+
+        if (SETTINGS.isDocumentIndex()) {
+            documentIndex = new DocumentIndex();
+        }
+    }
 
-        Preconditions.checkArgument(isNotBlank(accessKey), "Empty accessKey");
-        Preconditions.checkArgument(isNotBlank(secretKey), "Empty secretKey");
-        Preconditions.checkArgument(isNotBlank(region), "Empty region");
+    public WorkDocsConfig getSettings() {
+        return SETTINGS;
     }
 
     private AmazonWorkDocs getWorkDocsClient() {
-        if (workDocs == null) {
-            AWSCredentials longTermCredentials =
-                    new BasicAWSCredentials(accessKey, secretKey);
-            AWSStaticCredentialsProvider staticCredentialProvider =
-                    new AWSStaticCredentialsProvider(longTermCredentials);
-            workDocs = AmazonWorkDocsClient.builder().withCredentials(staticCredentialProvider)
-                    .withRegion(region).build();
-        }
+        lock.lock();
+        try {
+            if (workDocs == null) {
+                workDocs = Transports.getWorkDocsClient(config, SETTINGS);
+            }
 
-        return workDocs;
+            return workDocs;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Only to be used holding {@link #lock}.
+     */
     private BiMap<String, String> getFolderHierarchy() {
         if (folderHierarchy == null) {
             log.info("Building folderHierarchy ...");
@@ -82,53 +104,65 @@ public class WorkDocsHelper {
                 String dirId = entry.getKey();
                 String dirName = entry.getValue();
                 String path = dirName;
-                String lastParentId = null;
+                String parentId = parentIdMap.get(dirId);
+                Set<String> visited = new HashSet<>();
                 do {
 
-                    String parentId = parentIdMap.get(entry.getKey());
                     String parentName = idNameMap.get(parentId);
-                    if (parentName == null || parentName.isEmpty() || (lastParentId != null && lastParentId.equals(parentId))) {
+                    if (parentName == null || parentName.isEmpty() || !visited.add(parentId)) {
                         break;
                     }
                     path = parentName + java.io.File.separator + path;
-                    lastParentId = parentId;
+                    parentId = parentIdMap.get(parentId);
                 } while (true);
 
-                folderHierarchy.put(dirId, path);
+                folderHierarchy.forcePut(dirId, path);
             }
 
             log.info("folderHierarchy Size:" + folderHierarchy.size());
+            if (documentIndex != null) {
+                log.info("documentIndex Size:" + documentIndex.size());
+            }
         }
 
         return folderHierarchy;
     }
 
     public String getRootFolderId() {
-        if (rootFolderId == null) {
-            rootFolderId = SETTINGS.getOrDefault("rootFolderId", "");
+        lock.lock();
+        try {
+            if (rootFolderId == null) {
+                rootFolderId = SETTINGS.getRootFolderId();
+
+                if (isBlank(rootFolderId)) {
+                    String userQuery = SETTINGS.getUserQuery();
+                    Preconditions.checkArgument(isNotBlank(userQuery), "Empty userQuery");
 
-            if (isBlank(rootFolderId)) {
-                String userQuery = SETTINGS.get("userQuery");
-                Preconditions.checkArgument(isNotBlank(userQuery), "Empty userQuery");
+                    List<User> users = queryUsers(userQuery);
+                    rootFolderId = users.get(0).getRootFolderId();
+                }
 
-                List<User> users = queryUsers(userQuery);
-                rootFolderId = users.get(0).getRootFolderId();
+                Preconditions.checkArgument(isNotBlank(rootFolderId), "Empty rootFolderId");
             }
 
-            Preconditions.checkArgument(isNotBlank(rootFolderId), "Empty rootFolderId");
+            return rootFolderId;
+        } finally {
+            lock.unlock();
         }
-
-        return rootFolderId;
     }
 
     public String getOrganizationId() {
+        lock.lock();
+        try {
+            if (organisationId == null) {
+                organisationId = SETTINGS.getOrganisationId();
+                Preconditions.checkArgument(isNotBlank(organisationId), "Empty organisationId");
+            }
 
-        if (organisationId == null) {
-            organisationId = SETTINGS.get("organisationId");
-            Preconditions.checkArgument(isNotBlank(organisationId), "Empty organisationId");
+            return organisationId;
+        } finally {
+            lock.unlock();
         }
-
-        return organisationId;
     }
 
     public List<User> queryUsers(String query) {
@@ -186,11 +220,23 @@ public class WorkDocsHelper {
     }
 
     public List<FolderMetadata> getFolders(String folderId) {
+        List<FolderMetadata> folders = new ArrayList<>();
         DescribeFolderContentsRequest folderContentsRequest = new DescribeFolderContentsRequest()
                 .withFolderId(folderId);
-        DescribeFolderContentsResult folderContentsResult = getWorkDocsClient().describeFolderContents(folderContentsRequest);
+        String marker = null;
+        do {
+            folderContentsRequest.setMarker(marker);
+            DescribeFolderContentsResult folderContentsResult = getWorkDocsClient().describeFolderContents(folderContentsRequest);
+            folders.addAll(folderContentsResult.getFolders());
 
-        return folderContentsResult.getFolders();
+            // The crawl already lists the documents, index them while we are here
+            if (documentIndex != null) {
+                documentIndex.addAll(folderId, folderContentsResult.getDocuments());
+            }
+            marker = folderContentsResult.getMarker();
+        } while (marker != null);
+
+        return folders;
     }
 
     public List<File> uploadDirectory(File directory) throws IOException {
@@ -207,70 +253,324 @@ public class WorkDocsHelper {
 
     public boolean uploadFile(File file) throws IOException {
         String folderPath = file.getParentFile().getAbsolutePath();
-        String storePath = getDataStoreDir().getAbsolutePath();
+        String storePath = config.getDataStoreDir().getAbsolutePath();
 
         folderPath = folderPath.replace(storePath + File.separator, "");
 
         String fileName = file.getName();
-        String contentType = DataUtils.getContentTypeByFile(file);
+        String contentType = DataUtils.getContentTypeByFile(config, file);
         Date lastModified = new Date(file.lastModified());
 
-        FileInputStream inputStream = null;
+        return uploadFile(folderPath, fileName, contentType, lastModified, file.length(),
+                (client, uploadUrl, encryption, limits) -> client.put(uploadUrl, contentType, encryption, file, limits));
+    }
+
+    /**
+     * Uploads a staged file under a folder and name of its own, like a copy of a file with the same content as the
+     * one staged.
+     *
+     * @param folderPath path of the folder from the root folder, with '/' separators
+     */
+    public boolean uploadFile(File file, String folderPath, String fileName, Date lastModified) throws IOException {
+        String contentType = DataUtils.getContentType(config, file, fileName);
+
+        return uploadFile(folderPath.replace("/", File.separator), fileName, contentType, lastModified, file.length(),
+                (client, uploadUrl, encryption, limits) -> client.put(uploadUrl, contentType, encryption, file, limits));
+    }
+
+    /**
+     * @param folderPath path of the folder from the root folder, with '/' separators
+     */
+    public boolean hasFolder(String folderPath) {
+        return isNullOrEmpty(folderPath) || getFolderId(folderPath.replace("/", File.separator)) != null;
+    }
+
+    /**
+     * What {@link #uploadFile} would do with a file, looking only at the folder hierarchy and the document index.
+     * Without a size, an existing document with the same modified time is taken as identical.
+     *
+     * @param folderPath path of the folder from the root folder, with '/' separators
+     */
+    public UploadAction planUpload(String folderPath, String fileName, long contentLength, Date lastModified) {
+        String folderId = isNullOrEmpty(folderPath) ? getRootFolderId()
+                : getFolderId(folderPath.replace("/", File.separator));
+        if (folderId == null || documentIndex == null) {
+            return UploadAction.NEW;
+        }
+
+        DocumentIndex.Entry existing = documentIndex.get(folderId, toDocumentName(fileName));
+        if (existing == null) {
+            return UploadAction.NEW;
+        }
+        if (existing.matches(contentLength, lastModified) || (contentLength < 0 && existing.matchesModified(lastModified))) {
+            return UploadAction.SKIP;
+        }
+        return UploadAction.VERSION;
+    }
+
+    /**
+     * Replaces the characters WorkDocs doesn't allow in document names.
+     */
+    public static String toDocumentName(String fileName) {
+        String[] illegalCharacters = {"*", "/", ":", "<", ">", "?", "\\", "|"};
+        for (String illegalCharacter : illegalCharacters) {
+            fileName = StringUtils.replace(fileName, illegalCharacter, "_");
+        }
+        return fileName;
+    }
+
+    /**
+     * Walks the folder tree from a folder one level at a time, describing the folders of a level in parallel, and
+     * hands every document to {@code handler} with the path of its folder, from the root folder.
+     *
+     * @param folderPath path of the folder from the root folder, with '/' separators
+     * @param subFolders whether to crawl a sub folder, by path
+     */
+    public void crawl(String folderPath, Predicate<String> subFolders, int workers,
+                      BiConsumer<String, DocumentMetadata> handler) throws InterruptedException {
+        String folderId = isNullOrEmpty(folderPath) ? getRootFolderId()
+                : getFolderId(folderPath.replace("/", File.separator));
+        if (folderId == null) {
+            log.info("Folder [{}] doesn't exist, nothing to crawl", folderPath);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
         try {
-            inputStream = new FileInputStream(file);
-            return uploadFile(folderPath, fileName, contentType, lastModified, inputStream);
+            Map<String, String> level = Collections.singletonMap(folderId, isNullOrEmpty(folderPath) ? "" : folderPath);
+            while (!level.isEmpty()) {
+                List<Future<Map<String, String>>> results = new ArrayList<>(level.size());
+                for (Map.Entry<String, String> folder : level.entrySet()) {
+                    results.add(pool.submit(() -> crawlFolder(folder.getKey(), folder.getValue(), subFolders, handler)));
+                }
+
+                Map<String, String> next = new HashMap<>();
+                for (Future<Map<String, String>> result : results) {
+                    try {
+                        next.putAll(result.get());
+                    } catch (ExecutionException e) {
+                        log.error("Could not crawl folder: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+                level = next;
+            }
         } finally {
-            if (inputStream != null) {
-                inputStream.close();
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the sub folders, id to path
+     */
+    private Map<String, String> crawlFolder(String folderId, String path, Predicate<String> crawled,
+                                            BiConsumer<String, DocumentMetadata> handler) {
+        Map<String, String> subFolders = new HashMap<>();
+        DescribeFolderContentsRequest folderContentsRequest = new DescribeFolderContentsRequest()
+                .withFolderId(folderId);
+        String marker = null;
+        do {
+            folderContentsRequest.setMarker(marker);
+            DescribeFolderContentsResult folderContentsResult = getWorkDocsClient().describeFolderContents(folderContentsRequest);
+            for (FolderMetadata folder : folderContentsResult.getFolders()) {
+                String subFolder = path.isEmpty() ? folder.getName() : path + "/" + folder.getName();
+                if (crawled.test(subFolder)) {
+                    subFolders.put(folder.getId(), subFolder);
+                }
             }
+            for (DocumentMetadata document : folderContentsResult.getDocuments()) {
+                handler.accept(path, document);
+            }
+            marker = folderContentsResult.getMarker();
+        } while (marker != null);
+
+        return subFolders;
+    }
+
+    /**
+     * Opens the original content of a document version.
+     */
+    public InputStream openDocument(String documentId, String versionId) throws IOException {
+        GetDocumentVersionRequest request = new GetDocumentVersionRequest()
+                .withDocumentId(documentId)
+                .withVersionId(versionId)
+                .withFields("SOURCE");
+        Map<String, String> source = getWorkDocsClient().getDocumentVersion(request).getMetadata().getSource();
+        String url = source == null ? null : source.get(DocumentSourceType.ORIGINAL.toString());
+        if (isNullOrEmpty(url)) {
+            throw new IOException("No download URL for document " + documentId);
         }
+
+        return new URL(url).openStream();
     }
 
+    /**
+     * @return id of the folder, created along with its missing ancestors if it doesn't exist yet. The lock isn't held
+     * while creating, two uploads creating the same folder end up with the one that was created first
+     */
     public String createFolder(String folderPath) {
 
         if (isNullOrEmpty(folderPath)) {
             return getRootFolderId();
         }
 
-        String folderId = getFolderHierarchy().inverse().get(folderPath);
+        String folderId = getFolderId(folderPath);
 
         if (!isNullOrEmpty(folderId)) {
             return folderId; // It already exists
         }
 
+        File parent = new File(folderPath).getParentFile();
+        if (parent != null) {
+            createFolder(parent.getPath());
+        }
+
+        return createMissingFolder(folderPath);
+    }
+
+    /**
+     * Creates the missing folders of {@code folderPaths} and their ancestors up front, so that uploads only have to
+     * look their folder up. Folders are created breadth first, the ones of a level in parallel since their parents
+     * exist by then.
+     *
+     * @param folderPaths paths of folders from the root folder, with '/' separators
+     * @return the number of folders created
+     */
+    public int createFolders(Collection<String> folderPaths, int workers) throws InterruptedException {
+        SortedMap<Integer, Set<String>> levels = new TreeMap<>();
+        for (String folderPath : folderPaths) {
+            String path = isNullOrEmpty(folderPath) ? null : new File(folderPath.replace("/", File.separator)).getPath();
+            while (path != null && getFolderId(path) == null
+                    && levels.computeIfAbsent(StringUtils.countMatches(path, File.separator), depth -> new HashSet<>()).add(path)) {
+                path = new File(path).getParent();
+            }
+        }
+        if (levels.isEmpty()) {
+            return 0;
+        }
+
+        log.info("Creating {} folders in {} levels ...", levels.values().stream().mapToInt(Set::size).sum(), levels.size());
+        int created = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+        try {
+            for (Set<String> level : levels.values()) {
+                Map<String, Future<String>> results = new LinkedHashMap<>();
+                for (String path : level) {
+                    results.put(path, pool.submit(() -> createMissingFolder(path)));
+                }
+
+                for (Map.Entry<String, Future<String>> result : results.entrySet()) {
+                    try {
+                        result.getValue().get();
+                        created++;
+                    } catch (ExecutionException e) {
+                        // Its sub folders fail too, uploads retry them lazily
+                        log.error("Could not create folder [" + result.getKey() + "]: " + e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
 
+        log.info("Created {} folders", created);
+        return created;
+    }
+
+    private String getFolderId(String folderPath) {
+        lock.lock();
+        try {
+            return getFolderHierarchy().inverse().get(folderPath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a folder whose parent exists. If it was created meanwhile, by another worker or process, the existing
+     * folder is used.
+     */
+    private String createMissingFolder(String folderPath) {
         File dir = new File(folderPath);
-        File parent = dir.getParentFile();
-        String parentFolderId;
-        if (parent == null) {
-            parentFolderId = getRootFolderId();
-        } else {
-            String parentFolderPath = parent.getPath();
-            parentFolderId = createFolder(parentFolderPath);
+        String parentFolderId = dir.getParent() == null ? getRootFolderId() : getFolderId(dir.getParent());
+        if (parentFolderId == null) {
+            throw new IllegalStateException("Parent folder doesn't exist: " + dir.getParent());
         }
 
-        CreateFolderRequest createFolderRequest = new CreateFolderRequest().withName(dir.getName()).withParentFolderId(parentFolderId);
-        CreateFolderResult createFolderResult = getWorkDocsClient().createFolder(createFolderRequest);
-        folderId = createFolderResult.getMetadata().getId();
-        getFolderHierarchy().put(folderId, folderPath);
+        String folderId;
+        try {
+            CreateFolderRequest createFolderRequest = new CreateFolderRequest().withName(dir.getName()).withParentFolderId(parentFolderId);
+            CreateFolderResult createFolderResult = getWorkDocsClient().createFolder(createFolderRequest);
+            folderId = createFolderResult.getMetadata().getId();
+        } catch (EntityAlreadyExistsException e) {
+            folderId = findFolder(parentFolderId, dir.getName());
+            if (folderId == null) {
+                throw e;
+            }
+        }
+
+        lock.lock();
+        try {
+            getFolderHierarchy().forcePut(folderId, folderPath);
+        } finally {
+            lock.unlock();
+        }
         return folderId;
     }
 
+    /**
+     * @return id of the sub folder called {@code name}, null if there is none
+     */
+    private String findFolder(String parentFolderId, String name) {
+        DescribeFolderContentsRequest folderContentsRequest = new DescribeFolderContentsRequest()
+                .withFolderId(parentFolderId)
+                .withType(FolderContentType.FOLDER);
+        String marker = null;
+        do {
+            folderContentsRequest.setMarker(marker);
+            DescribeFolderContentsResult folderContentsResult = getWorkDocsClient().describeFolderContents(folderContentsRequest);
+            for (FolderMetadata folder : folderContentsResult.getFolders()) {
+                if (name.equals(folder.getName())) {
+                    return folder.getId();
+                }
+            }
+            marker = folderContentsResult.getMarker();
+        } while (marker != null);
+
+        return null;
+    }
+
     public boolean uploadFile(String folderPath, String fileName, String contentType, Date lastModified, InputStream inputStream) throws IOException {
+        return uploadFile(folderPath, fileName, contentType, lastModified, -1, inputStream);
+    }
 
-        String[] illegalCharacters = {"*", "/", ":", "<", ">", "?", "\\", "|"};
-        for (String illegalCharacter : illegalCharacters) {
-            fileName = StringUtils.replace(fileName, illegalCharacter, "_");
-        }
+    /**
+     * @param contentLength size of the content in bytes, or -1 if unknown, in which case an existing document
+     *                      with the same name always gets a new version
+     */
+    public boolean uploadFile(String folderPath, String fileName, String contentType, Date lastModified, long contentLength, InputStream inputStream) throws IOException {
+        return uploadFile(folderPath, fileName, contentType, lastModified, contentLength,
+                (client, uploadUrl, encryption, limits) -> client.put(uploadUrl, contentType, encryption, contentLength, inputStream, limits));
+    }
+
+    private boolean uploadFile(String folderPath, String fileName, String contentType, Date lastModified, long contentLength, Content content) throws IOException {
+
+        fileName = toDocumentName(fileName);
 
         log.info("Uploading to WorkDocs: " + fileName);
 
         String awzEncryption = "AES256";
         //String awzEncryption = "aws:kms";
 
-        String parentFolderId = getFolderHierarchy().inverse().get(folderPath);
-        if (isNullOrEmpty(parentFolderId)) {
+        String parentFolderId;
+        try (Trace trace = Trace.start(Trace.Phase.FOLDER, null, folderPath, -1, null)) {
             parentFolderId = createFolder(folderPath);
+            trace.setFileId(parentFolderId).setOutcome(Trace.OK);
+        }
+
+        DocumentIndex.Entry existing = documentIndex == null ? null : documentIndex.get(parentFolderId, fileName);
+        if (existing != null && existing.matches(contentLength, lastModified)) {
+            log.info("Skipping [{}], identical document already exists: {}", fileName, existing.getDocumentId());
+            return true;
         }
 
         // Get the signed URL for the upload
@@ -281,6 +581,11 @@ public class WorkDocsHelper {
                 .withContentCreatedTimestamp(lastModified)
                 .withContentModifiedTimestamp(lastModified);
 
+        if (existing != null) {
+            log.info("Adding a new version to existing document: " + existing.getDocumentId());
+            request.setId(existing.getDocumentId());
+        }
+
         InitiateDocumentVersionUploadResult result = getWorkDocsClient().initiateDocumentVersionUpload(request);
         UploadMetadata uploadMetadata = result.getUploadMetadata();
 
@@ -293,21 +598,12 @@ public class WorkDocsHelper {
         log.info("uploadUrl: " + uploadUrl);
 
         // Upload the document using the signed URL
-        URL url = new URL(uploadUrl);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("PUT");
-
-        connection.setRequestProperty("Content-Type", contentType);
-        connection.setRequestProperty("x-amz-server-side-encryption", awzEncryption);
-        if ("kms".equals(awzEncryption)) {
-            //  connection.setRequestProperty("x-amz-server-side-encryption-aws-kms-key-id", "no-key-defined");
+        try (Trace trace = Trace.start(Trace.Phase.PUT, documentId, fileName, contentLength, contentType)) {
+            content.put(Transports.getUploadClient(config, SETTINGS), uploadUrl, awzEncryption,
+                    new BandwidthLimit[]{uploadBandwidth, Transports.getUploadBandwidth()});
+            trace.setOutcome(Trace.OK);
         }
 
-        OutputStream outputStream = connection.getOutputStream();
-        com.amazonaws.util.IOUtils.copy(inputStream, outputStream);
-        connection.getResponseCode();
-
 
         // Complete the upload process by changing the document status to ACTIVE
 
@@ -315,8 +611,27 @@ public class WorkDocsHelper {
         updateDocVerRequest.setDocumentId(documentId);
         updateDocVerRequest.setVersionId(documentVersionId);
         updateDocVerRequest.setVersionStatus(DocumentVersionStatus.ACTIVE);
-        getWorkDocsClient().updateDocumentVersion(updateDocVerRequest);
+        try (Trace trace = Trace.start(Trace.Phase.UPDATE_VERSION, documentId, fileName, contentLength, contentType)) {
+            getWorkDocsClient().updateDocumentVersion(updateDocVerRequest);
+            trace.setOutcome(Trace.OK);
+        }
+
+        if (documentIndex != null) {
+            documentIndex.put(parentFolderId, fileName, new DocumentIndex.Entry(documentId, documentVersionId,
+                    contentLength, lastModified == null ? 0 : lastModified.getTime()));
+        }
 
         return true;
     }
-}
\ No newline at end of file
+
+    public enum UploadAction {
+        NEW, VERSION, SKIP
+    }
+
+    /**
+     * Sends the content of a document to its signed upload URL.
+     */
+    private interface Content {
+        void put(UploadClient client, String uploadUrl, String encryption, BandwidthLimit[] limits) throws IOException;
+    }
+}
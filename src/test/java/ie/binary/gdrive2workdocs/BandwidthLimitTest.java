@@ -0,0 +1,99 @@
+package ie.binary.gdrive2workdocs;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.time.LocalTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthLimitTest {
+
+    @Test
+    public void writesWaitForTheirBytes() throws Exception {
+        BandwidthLimit limit = new BandwidthLimit("test", 1000, null);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = BandwidthLimit.throttle(bytes, limit);
+
+        long start = System.nanoTime();
+        out.write(new byte[500]);
+        out.write(1);
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(millis + "ms", millis >= 450);
+        assertEquals(501, bytes.size());
+    }
+
+    @Test
+    public void noRateMeansNoLimit() throws Exception {
+        BandwidthLimit limit = new BandwidthLimit("test", 0, null);
+
+        long start = System.nanoTime();
+        limit.acquire(Long.MAX_VALUE);
+
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void limitIsLiftedOutsideItsHours() {
+        LocalTime now = LocalTime.now();
+        BandwidthLimit limit = new BandwidthLimit("test", 1000,
+                new BandwidthLimit.Hours(now.plusHours(2), now.plusHours(3)));
+
+        assertEquals(0, limit.getBytesPerSecond());
+
+        limit.configure(2000, new BandwidthLimit.Hours(now.minusHours(1), now.plusHours(1)));
+        assertEquals(2000, limit.getBytesPerSecond());
+
+        limit.configure(3000, null);
+        assertEquals(3000, limit.getBytesPerSecond());
+    }
+
+    @Test
+    public void throttleSkipsMissingLimits() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        assertSame(bytes, BandwidthLimit.throttle(bytes, null, null));
+
+        OutputStream out = BandwidthLimit.throttle(bytes, null, new BandwidthLimit("test", 0, null));
+        assertNotSame(bytes, out);
+        out.write(new byte[]{1, 2, 3});
+        assertArrayEquals(new byte[]{1, 2, 3}, bytes.toByteArray());
+    }
+
+    @Test
+    public void hoursMaySpanMidnight() {
+        BandwidthLimit.Hours hours = BandwidthLimit.Hours.parse("22:00 - 06:00");
+
+        assertTrue(hours.contains(LocalTime.of(22, 0)));
+        assertTrue(hours.contains(LocalTime.of(2, 0)));
+        assertFalse(hours.contains(LocalTime.of(6, 0)));
+        assertFalse(hours.contains(LocalTime.of(12, 0)));
+        assertEquals("22:00-06:00", hours.toString());
+    }
+
+    @Test
+    public void officeHours() {
+        BandwidthLimit.Hours hours = BandwidthLimit.Hours.parse("08:00-18:00");
+
+        assertFalse(hours.contains(LocalTime.of(7, 59)));
+        assertTrue(hours.contains(LocalTime.of(8, 0)));
+        assertFalse(hours.contains(LocalTime.of(18, 0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hoursMustBeARange() {
+        BandwidthLimit.Hours.parse("08:00");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hoursMustBeTimes() {
+        BandwidthLimit.Hours.parse("8am-6pm");
+    }
+}
@@ -0,0 +1,30 @@
+package ie.binary.gdrive2workdocs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class PlannerTest {
+
+    @Test
+    public void escapedNamesFitOnOneTabSeparatedLine() {
+        String escaped = Planner.escape("a\tb\nc\rd");
+
+        assertEquals("a\\tb\\nc\\rd", escaped);
+        assertFalse(escaped.contains("\t"));
+    }
+
+    @Test
+    public void unescapeRestoresEscapedNames() {
+        for (String name : new String[]{"", "plain.txt", "tab\there", "lines\r\nhere", "back\\slash", "\\t literally",
+                "ends with \\", "\u00fcn\u00efc\u00f6d\u00e9"}) {
+            assertEquals(name, Planner.unescape(Planner.escape(name)));
+        }
+    }
+
+    @Test
+    public void unescapeKeepsTrailingBackslash() {
+        assertEquals("a\\", Planner.unescape("a\\"));
+    }
+}
@@ -0,0 +1,206 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.services.drive.model.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardCoordinatorTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final List<ShardCoordinator> coordinators = new ArrayList<>();
+    private Path gdriveDir;
+
+    @Before
+    public void setUp() {
+        gdriveDir = temp.getRoot().toPath().resolve("test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (ShardCoordinator coordinator : coordinators) {
+            coordinator.close();
+        }
+    }
+
+    @Test
+    public void leasedShardsAreNotClaimedTwice() throws IOException {
+        ShardCoordinator first = coordinator("first", 4);
+        ShardCoordinator second = coordinator("second", 4);
+
+        assertEquals(shards(0, 1, 2, 3), first.claim());
+        assertTrue(second.claim().isEmpty());
+    }
+
+    @Test
+    public void shardsPerClaimLimitsAClaim() throws IOException {
+        ShardCoordinator first = coordinator("first", 4, 3);
+        ShardCoordinator second = coordinator("second", 4, 3);
+
+        assertEquals(3, first.claim().size());
+        assertEquals(1, second.claim().size());
+        assertTrue(second.claim().isEmpty());
+    }
+
+    @Test
+    public void releasedShardsAreClaimedStraightAway() throws IOException {
+        ShardCoordinator first = coordinator("first", 2);
+        ShardCoordinator second = coordinator("second", 2);
+
+        first.release(first.claim());
+
+        assertEquals(shards(0, 1), second.claim());
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOver() throws IOException {
+        writeLease(1, 0, "crashed " + (System.currentTimeMillis() - 1000));
+        ShardCoordinator coordinator = coordinator("second", 1);
+
+        assertEquals(shards(0), coordinator.claim());
+        assertTrue(readLease(1, 0).startsWith("second "));
+        try (Stream<Path> files = Files.list(gdriveDir.resolve("run-1"))) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void liveLeaseIsNotTakenOver() throws IOException {
+        writeLease(1, 0, "alive " + (System.currentTimeMillis() + 60000));
+        ShardCoordinator coordinator = coordinator("second", 1);
+
+        assertTrue(coordinator.claim().isEmpty());
+        assertTrue(readLease(1, 0).startsWith("alive "));
+    }
+
+    @Test
+    public void leaseBeingWrittenIsNotTakenOver() throws IOException {
+        writeLease(1, 0, "");
+        ShardCoordinator coordinator = coordinator("second", 1);
+
+        assertTrue(coordinator.claim().isEmpty());
+    }
+
+    @Test
+    public void takenOverShardSkipsTransferredFiles() throws IOException {
+        ShardCoordinator first = coordinator("first", 1);
+        first.claim();
+        first.complete(file("a"));
+        writeLease(1, 0, "first " + (System.currentTimeMillis() - 1000));
+
+        ShardCoordinator second = coordinator("second", 1);
+        assertFalse(second.isCompleted("a"));
+        assertEquals(shards(0), second.claim());
+        assertTrue(second.isCompleted("a"));
+        assertFalse(second.isCompleted("b"));
+    }
+
+    @Test
+    public void failedShardIsNotMarkedDone() throws IOException {
+        ShardCoordinator first = coordinator("first", 2);
+        ShardCoordinator second = coordinator("second", 2);
+        File failed = file("a");
+        int failedShard = first.shardOf(failed.getId());
+
+        first.fail(failed);
+        first.finish(first.claim());
+
+        assertTrue(first.isFinished());
+        assertFalse(second.isFinished());
+        assertEquals(shards(failedShard), second.claim());
+        assertFalse(Files.exists(gdriveDir.resolve("run-1/shard-" + failedShard + ".done")));
+        assertTrue(Files.exists(gdriveDir.resolve("run-1/shard-" + (1 - failedShard) + ".done")));
+    }
+
+    @Test
+    public void lostLeaseIsNotMarkedDone() throws IOException {
+        ShardCoordinator first = coordinator("first", 1);
+        Set<Integer> claimed = first.claim();
+        first.release(claimed);
+
+        first.finish(claimed);
+
+        assertFalse(first.isFinished());
+    }
+
+    @Test
+    public void nextRunStartsWhenAllShardsAreDone() throws IOException {
+        ShardCoordinator first = coordinator("first", 2);
+        first.finish(first.claim());
+        ShardCoordinator second = coordinator("second", 2);
+
+        assertTrue(Files.isDirectory(gdriveDir.resolve("run-1")));
+        assertTrue(Files.isDirectory(gdriveDir.resolve("run-2")));
+
+        second.finish(second.claim());
+        coordinator("third", 2);
+
+        assertFalse(Files.exists(gdriveDir.resolve("run-1")));
+        assertTrue(Files.isDirectory(gdriveDir.resolve("run-2")));
+        assertTrue(Files.isDirectory(gdriveDir.resolve("run-3")));
+    }
+
+    @Test
+    public void everyWorkerComputesTheSameShard() throws IOException {
+        ShardCoordinator coordinator = coordinator("first", 64);
+
+        assertEquals(("1a2b3c".hashCode() & Integer.MAX_VALUE) % 64, coordinator.shardOf("1a2b3c"));
+    }
+
+    private ShardCoordinator coordinator(String workerId, int shards) throws IOException {
+        return coordinator(workerId, shards, shards);
+    }
+
+    private ShardCoordinator coordinator(String workerId, int shards, int shardsPerClaim) throws IOException {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("name", "test");
+        values.put("clientId", "id");
+        values.put("clientSecret", "secret");
+        values.put("coordinationDir", temp.getRoot().getPath());
+        values.put("shards", shards);
+        values.put("shardsPerClaim", shardsPerClaim);
+        values.put("workerId", workerId);
+        ShardCoordinator coordinator = new ShardCoordinator(new GDriveConfig(values));
+        coordinators.add(coordinator);
+        return coordinator;
+    }
+
+    private void writeLease(int run, int shard, String content) throws IOException {
+        Path runDir = Files.createDirectories(gdriveDir.resolve("run-" + run));
+        Files.write(runDir.resolve("shard-" + shard + ".lease"), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readLease(int run, int shard) throws IOException {
+        Path lease = gdriveDir.resolve("run-" + run + "/shard-" + shard + ".lease");
+        return new String(Files.readAllBytes(lease), StandardCharsets.UTF_8);
+    }
+
+    private static File file(String id) {
+        return new File().setId(id).setName(id);
+    }
+
+    private static Set<Integer> shards(Integer... shards) {
+        return new HashSet<>(Arrays.asList(shards));
+    }
+}
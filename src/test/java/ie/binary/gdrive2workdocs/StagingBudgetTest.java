@@ -0,0 +1,159 @@
+package ie.binary.gdrive2workdocs;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StagingBudgetTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void reserveBlocksUntilDownloadsGiveBytesBack() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+        budget.reserve(60);
+
+        CountDownLatch reserved = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                budget.reserve(60);
+                reserved.countDown();
+            } catch (IOException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+
+        assertFalse(reserved.await(200, TimeUnit.MILLISECONDS));
+        budget.release(60);
+        assertTrue(reserved.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void adjustGivesBackWhatWasOverestimated() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+        budget.reserve(90);
+        budget.adjust(90, 10);
+
+        budget.reserve(90);
+    }
+
+    @Test
+    public void reservationLargerThanTheBudgetPassesWhenNothingIsStaged() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+
+        budget.reserve(1000);
+    }
+
+    @Test
+    public void noCapacityMeansNoLimit() throws Exception {
+        StagingBudget budget = new StagingBudget(0, false);
+        budget.reserve(Long.MAX_VALUE / 2);
+
+        budget.reserve(Long.MAX_VALUE / 4);
+    }
+
+    @Test
+    public void retainedFilesExhaustTheBudgetWithoutEviction() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+        File file = file("a", 80);
+        budget.reserve(80);
+        budget.retain(file, 80);
+
+        try {
+            budget.reserve(30);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Staging budget of"));
+        }
+        assertTrue(file.exists());
+    }
+
+    @Test
+    public void evictionDeletesTheLeastRecentlyRetainedFiles() throws Exception {
+        StagingBudget budget = new StagingBudget(100, true);
+        File a = file("a", 20);
+        File b = file("b", 20);
+        File c = file("c", 20);
+        // a is downloaded again, which makes it the most recently used
+        for (File file : new File[]{a, b, c, a}) {
+            budget.reserve(20);
+            budget.retain(file, 20);
+        }
+
+        budget.reserve(70);
+
+        assertFalse(b.exists());
+        assertFalse(c.exists());
+        assertTrue(a.exists());
+    }
+
+    @Test
+    public void retainingAFileAgainCountsItOnce() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+        File file = file("a", 40);
+        budget.reserve(40);
+        budget.retain(file, 40);
+        budget.reserve(40);
+        budget.retain(file, 40);
+
+        budget.reserve(60);
+    }
+
+    @Test
+    public void seedAccountsForStagedFilesOldestFirst() throws Exception {
+        File dir = temp.newFolder("mirror");
+        File newer = file("mirror/newer", 40);
+        File older = file("mirror/sub/older", 40);
+        assertTrue(older.setLastModified(newer.lastModified() - 60000));
+
+        StagingBudget budget = new StagingBudget(100, true);
+        budget.seed(dir);
+        budget.seed(dir);
+        budget.reserve(20);
+
+        assertTrue(older.exists());
+        assertTrue(newer.exists());
+
+        budget.reserve(20);
+
+        assertFalse(older.exists());
+        assertTrue(newer.exists());
+        assertArrayEquals(new String[]{"newer", "sub"}, sorted(dir.list()));
+    }
+
+    @Test
+    public void seedIgnoresMissingDirectory() throws Exception {
+        StagingBudget budget = new StagingBudget(100, false);
+        budget.seed(new File(temp.getRoot(), "missing"));
+
+        budget.reserve(100);
+    }
+
+    private File file(String path, int size) throws IOException {
+        File file = new File(temp.getRoot(), path);
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), new byte[size]);
+        return file;
+    }
+
+    private static String[] sorted(String[] names) {
+        Arrays.sort(names);
+        return names;
+    }
+}
@@ -0,0 +1,148 @@
+package ie.binary.gdrive2workdocs;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncFilterTest {
+
+    private TimeZone timeZone;
+
+    @Before
+    public void setUp() {
+        // Drive dates are formatted in the default time zone
+        timeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(timeZone);
+    }
+
+    @Test
+    public void noFilterSelectsEverything() {
+        SyncFilter filter = filter(new LinkedHashMap<>());
+
+        assertNull(filter.toQuery());
+        assertTrue(filter.matches(file("a.txt", "text/plain", 10L), "/"));
+        assertTrue(filter.includesFolder("/Projects"));
+    }
+
+    @Test
+    public void queryIncludesAndExcludesMimeTypes() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("includeMimeTypes", Arrays.asList("application/pdf", "image/png"));
+        values.put("excludeMimeTypes", "application/vnd.google-apps.form");
+
+        assertEquals("(mimeType = 'application/pdf' or mimeType = 'image/png')"
+                        + " and mimeType != 'application/vnd.google-apps.form'",
+                filter(values).toQuery());
+    }
+
+    @Test
+    public void queryEscapesQuotesAndBackslashes() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("excludeMimeTypes", "it's\\odd");
+
+        assertEquals("mimeType != 'it\\'s\\\\odd'", filter(values).toQuery());
+    }
+
+    @Test
+    public void queryLimitsModifiedTimeTrashedAndOwnership() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("modifiedAfter", "2020-01-31");
+        values.put("modifiedBefore", "2021-06-30T12:00:00+02:00");
+        values.put("trashed", false);
+        values.put("ownedByMe", true);
+
+        assertEquals("modifiedTime >= '2020-01-31T00:00:00.000Z'"
+                        + " and modifiedTime < '2021-06-30T10:00:00.000Z'"
+                        + " and trashed = false"
+                        + " and 'me' in owners",
+                filter(values).toQuery());
+    }
+
+    @Test
+    public void queryExcludesFilesOwnedByMe() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("ownedByMe", "no");
+
+        assertEquals("not 'me' in owners", filter(values).toQuery());
+    }
+
+    @Test
+    public void pathsSelectFoldersAndEverythingBelow() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("includePaths", Arrays.asList("/Projects/", "/Photos"));
+        values.put("excludePaths", "/Projects/Old");
+        SyncFilter filter = filter(values);
+
+        assertTrue(filter.matches(file("a.txt", "text/plain", 1L), "/Projects"));
+        assertTrue(filter.matches(file("a.txt", "text/plain", 1L), "/Photos/2020"));
+        assertFalse(filter.matches(file("a.txt", "text/plain", 1L), "/Projects/Old"));
+        assertFalse(filter.matches(file("a.txt", "text/plain", 1L), "/PhotosBackup"));
+        assertFalse(filter.matches(file("a.txt", "text/plain", 1L), "/"));
+
+        assertTrue(filter.includesFolder("/"));
+        assertTrue(filter.includesFolder("/Projects/New"));
+        assertFalse(filter.includesFolder("/Projects/Old/2019"));
+        assertFalse(filter.includesFolder("/Music"));
+    }
+
+    @Test
+    public void sizeLimitsDontApplyToExports() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("minSize", 10);
+        values.put("maxSize", 100);
+        SyncFilter filter = filter(values);
+
+        assertFalse(filter.matches(file("small", "text/plain", 9L), "/"));
+        assertTrue(filter.matches(file("fits", "text/plain", 100L), "/"));
+        assertFalse(filter.matches(file("large", "text/plain", 101L), "/"));
+        assertTrue(filter.matches(file("doc", "application/vnd.google-apps.document", null), "/"));
+    }
+
+    @Test
+    public void changesAreCheckedAgainstWhatTheQueryWouldSelect() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("excludeMimeTypes", "image/png");
+        values.put("modifiedAfter", "2020-01-31");
+        values.put("trashed", false);
+        SyncFilter filter = filter(values);
+
+        assertFalse(filter.matches(file("a.png", "image/png", 1L), "/"));
+        assertFalse(filter.matches(file("a.txt", "text/plain", 1L).setModifiedTime(new DateTime("2020-01-30T23:59:59Z")), "/"));
+        assertTrue(filter.matches(file("a.txt", "text/plain", 1L).setModifiedTime(new DateTime("2020-01-31T00:00:00Z")), "/"));
+        assertFalse(filter.matches(file("a.txt", "text/plain", 1L).setTrashed(true), "/"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxSizeBelowMinSizeIsRejected() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("minSize", 100);
+        values.put("maxSize", 10);
+
+        filter(values);
+    }
+
+    private static SyncFilter filter(Map<String, Object> values) {
+        return new SyncFilter(new Config.Section("test", values));
+    }
+
+    private static File file(String name, String mimeType, Long size) {
+        return new File().setName(name).setMimeType(mimeType).setSize(size);
+    }
+}